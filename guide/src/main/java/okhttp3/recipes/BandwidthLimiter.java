@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Caps the bandwidth used by every call of a client. Install one instance as an application
+ * interceptor; since the limits live in the interceptor, all calls through the client (and through
+ * clients derived from it with {@link OkHttpClient#newBuilder()}) share them.
+ *
+ * <p>Uploads and downloads are limited separately, each with an optional global limit and
+ * optional per-host limits. A transfer proceeds only as fast as the tightest limit that applies.
+ *
+ * <p>Limits are token buckets. Taking tokens is a compare-and-set on a single counter, and the
+ * buckets are refilled coarsely, at most every {@linkplain TokenBucket#REFILL_INTERVAL_NANOS 10
+ * ms}, by whichever thread notices that they are due. Nothing locks, so the limiter doesn't become
+ * a point of contention between many concurrent calls.
+ *
+ * <p>With a per-host limit, a bucket is created for each host seen. Buckets that have gone unused
+ * for a minute are full and indistinguishable from new ones, so they are dropped as more hosts
+ * arrive; a client that crawls many hosts holds buckets only for those it has used recently.
+ */
+public final class BandwidthLimiter implements Interceptor {
+  private final Direction download;
+  private final Direction upload;
+
+  private BandwidthLimiter(Builder builder) {
+    this.download = new Direction(builder.downloadLimit, builder.perHostDownloadLimit,
+        builder.hostDownloadLimits);
+    this.upload = new Direction(builder.uploadLimit, builder.perHostUploadLimit,
+        builder.hostUploadLimits);
+  }
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    String host = request.url().host();
+
+    if (request.body() != null && upload.isLimited(host)) {
+      request = request.newBuilder()
+          .method(request.method(), new LimitedRequestBody(request.body(), upload, host))
+          .build();
+    }
+
+    Response response = chain.proceed(request);
+    if (response.body() == null || !download.isLimited(host)) return response;
+
+    ResponseBody body = response.body();
+    final Direction direction = download;
+    final TokenBucket hostBucket = download.hostBucket(host);
+    return response.newBuilder()
+        .body(ResponseBody.create(body.contentType(), body.contentLength(),
+            Okio.buffer(new ForwardingSource(body.source()) {
+              @Override public long read(Buffer sink, long byteCount) throws IOException {
+                long granted = direction.acquire(hostBucket, byteCount);
+                long read = super.read(sink, granted);
+                direction.release(hostBucket, granted - Math.max(read, 0L));
+                return read;
+              }
+            })))
+        .build();
+  }
+
+  /** Throttles a request body as it's written. */
+  static final class LimitedRequestBody extends RequestBody {
+    private final RequestBody delegate;
+    private final Direction direction;
+    private final String host;
+
+    LimitedRequestBody(RequestBody delegate, Direction direction, String host) {
+      this.delegate = delegate;
+      this.direction = direction;
+      this.host = host;
+    }
+
+    @Override public MediaType contentType() {
+      return delegate.contentType();
+    }
+
+    @Override public long contentLength() throws IOException {
+      return delegate.contentLength();
+    }
+
+    @Override public void writeTo(BufferedSink sink) throws IOException {
+      final TokenBucket hostBucket = direction.hostBucket(host);
+      BufferedSink limitedSink = Okio.buffer(new ForwardingSink(sink) {
+        @Override public void write(Buffer source, long byteCount) throws IOException {
+          while (byteCount > 0) {
+            long granted = direction.acquire(hostBucket, byteCount);
+            super.write(source, granted);
+            byteCount -= granted;
+          }
+        }
+      });
+      delegate.writeTo(limitedSink);
+      limitedSink.emit();
+    }
+  }
+
+  /** The limits for one direction of transfer. */
+  static final class Direction {
+    /** The fewest per-host buckets worth sweeping for idle ones. */
+    static final int MIN_SWEEP_SIZE = 64;
+
+    private final TokenBucket global;
+    private final long perHostLimit;
+    /** Buckets for hosts with a configured limit. These are never dropped. */
+    private final Map<String, TokenBucket> configuredBuckets = new LinkedHashMap<>();
+    /** Buckets created on demand for the per-host limit. */
+    private final ConcurrentMap<String, TokenBucket> hostBuckets = new ConcurrentHashMap<>();
+    /** Sweep idle buckets once this many exist. Doubles with the live count, to amortize sweeps. */
+    private final AtomicInteger sweepSize = new AtomicInteger(MIN_SWEEP_SIZE);
+
+    Direction(long globalLimit, long perHostLimit, Map<String, Long> hostLimits) {
+      this.global = globalLimit > 0 ? new TokenBucket(globalLimit) : null;
+      this.perHostLimit = perHostLimit;
+      for (Map.Entry<String, Long> entry : hostLimits.entrySet()) {
+        configuredBuckets.put(entry.getKey(), new TokenBucket(entry.getValue()));
+      }
+    }
+
+    boolean isLimited(String host) {
+      return global != null || perHostLimit > 0 || configuredBuckets.containsKey(host);
+    }
+
+    /** Returns the bucket for {@code host}, or null if that host has no limit of its own. */
+    TokenBucket hostBucket(String host) {
+      TokenBucket bucket = configuredBuckets.get(host);
+      if (bucket != null || perHostLimit <= 0) return bucket;
+      bucket = hostBuckets.get(host);
+      if (bucket != null) return bucket;
+
+      TokenBucket created = new TokenBucket(perHostLimit);
+      bucket = hostBuckets.putIfAbsent(host, created);
+      if (bucket != null) return bucket;
+      sweepIfDue();
+      return created;
+    }
+
+    /** Drops the buckets of hosts that haven't been used recently. */
+    private void sweepIfDue() {
+      int due = sweepSize.get();
+      if (hostBuckets.size() < due || !sweepSize.compareAndSet(due, Integer.MAX_VALUE)) return;
+
+      long now = System.nanoTime();
+      for (Iterator<TokenBucket> i = hostBuckets.values().iterator(); i.hasNext(); ) {
+        if (i.next().isIdle(now)) i.remove();
+      }
+      sweepSize.set(Math.max(MIN_SWEEP_SIZE, hostBuckets.size() * 2));
+    }
+
+    /**
+     * Blocks until at least one byte may be transferred, then returns how many bytes may be, at
+     * most {@code max}. The tokens are taken from both the host's bucket and the global one.
+     */
+    long acquire(TokenBucket hostBucket, long max) throws InterruptedIOException {
+      while (true) {
+        long granted = hostBucket != null ? hostBucket.take(max) : max;
+        if (granted > 0 && global != null) {
+          long globalGranted = global.take(granted);
+          if (hostBucket != null) hostBucket.giveBack(granted - globalGranted);
+          granted = globalGranted;
+        }
+        if (granted > 0) return granted;
+
+        try {
+          TimeUnit.NANOSECONDS.sleep(TokenBucket.REFILL_INTERVAL_NANOS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted while throttled");
+        }
+      }
+    }
+
+    /** Returns tokens that were acquired but not used. */
+    void release(TokenBucket hostBucket, long unused) {
+      if (unused <= 0) return;
+      if (hostBucket != null) hostBucket.giveBack(unused);
+      if (global != null) global.giveBack(unused);
+    }
+  }
+
+  /** A lock-free token bucket holding up to 200 ms worth of bytes. */
+  static final class TokenBucket {
+    static final long REFILL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    /** How long a bucket must go unused before it may be dropped. */
+    static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long bytesPerSecond;
+    private final long capacity;
+    /** How long an empty bucket takes to fill. */
+    private final long fillNanos;
+    private final AtomicLong tokens;
+    private final AtomicLong lastRefillNanos;
+    private volatile long lastUsedNanos;
+
+    TokenBucket(long bytesPerSecond) {
+      if (bytesPerSecond <= 0) throw new IllegalArgumentException("bytesPerSecond <= 0");
+      this.bytesPerSecond = bytesPerSecond;
+      this.capacity = Math.max(1L, bytesPerSecond / (NANOS_PER_SECOND / BURST_NANOS));
+      this.fillNanos = capacity * NANOS_PER_SECOND / bytesPerSecond;
+      this.tokens = new AtomicLong(capacity);
+      this.lastRefillNanos = new AtomicLong(System.nanoTime());
+      this.lastUsedNanos = lastRefillNanos.get();
+    }
+
+    /** Takes up to {@code max} tokens without blocking and returns how many were taken. */
+    long take(long max) {
+      lastUsedNanos = System.nanoTime();
+      while (true) {
+        long available = tokens.get();
+        if (available <= 0) {
+          if (!refill()) return 0L;
+          continue;
+        }
+        long granted = Math.min(available, max);
+        if (tokens.compareAndSet(available, available - granted)) return granted;
+      }
+    }
+
+    void giveBack(long count) {
+      if (count <= 0) return;
+      while (true) {
+        long current = tokens.get();
+        long updated = Math.min(capacity, current + count);
+        if (tokens.compareAndSet(current, updated)) return;
+      }
+    }
+
+    /**
+     * Returns true if this bucket hasn't been used for long enough to have refilled, and for long
+     * enough that no call still holds it.
+     */
+    boolean isIdle(long now) {
+      return now - lastUsedNanos >= Math.max(fillNanos, IDLE_NANOS);
+    }
+
+    /**
+     * Adds the whole tokens accrued since the last refill, if that was at least {@link
+     * #REFILL_INTERVAL_NANOS} ago. Returns false if it's too soon to refill, or if not even one
+     * token has accrued yet.
+     */
+    private boolean refill() {
+      long now = System.nanoTime();
+      long last = lastRefillNanos.get();
+      long elapsed = now - last;
+      if (elapsed < REFILL_INTERVAL_NANOS) return false;
+
+      long accrued;
+      long refilledUntil;
+      if (elapsed >= fillNanos) {
+        accrued = capacity;
+        refilledUntil = now;
+      } else {
+        accrued = elapsed * bytesPerSecond / NANOS_PER_SECOND;
+        if (accrued == 0L) return false;
+        // Only advance by the time the whole tokens account for, so fractions carry forward.
+        refilledUntil = last + accrued * NANOS_PER_SECOND / bytesPerSecond;
+      }
+      if (!lastRefillNanos.compareAndSet(last, refilledUntil)) {
+        return true; // Another thread refilled.
+      }
+
+      while (true) {
+        long current = tokens.get();
+        long updated = Math.min(capacity, current + accrued);
+        if (tokens.compareAndSet(current, updated)) return true;
+      }
+    }
+  }
+
+  public static final class Builder {
+    long downloadLimit;
+    long uploadLimit;
+    long perHostDownloadLimit;
+    long perHostUploadLimit;
+    final Map<String, Long> hostDownloadLimits = new LinkedHashMap<>();
+    final Map<String, Long> hostUploadLimits = new LinkedHashMap<>();
+
+    /** Limits the combined download rate of all calls. */
+    public Builder downloadLimit(long bytesPerSecond) {
+      this.downloadLimit = checkLimit(bytesPerSecond);
+      return this;
+    }
+
+    /** Limits the combined upload rate of all calls. */
+    public Builder uploadLimit(long bytesPerSecond) {
+      this.uploadLimit = checkLimit(bytesPerSecond);
+      return this;
+    }
+
+    /** Limits the download rate from each host that has no limit of its own. */
+    public Builder perHostDownloadLimit(long bytesPerSecond) {
+      this.perHostDownloadLimit = checkLimit(bytesPerSecond);
+      return this;
+    }
+
+    /** Limits the upload rate to each host that has no limit of its own. */
+    public Builder perHostUploadLimit(long bytesPerSecond) {
+      this.perHostUploadLimit = checkLimit(bytesPerSecond);
+      return this;
+    }
+
+    public Builder hostDownloadLimit(String host, long bytesPerSecond) {
+      hostDownloadLimits.put(host.toLowerCase(Locale.US), checkLimit(bytesPerSecond));
+      return this;
+    }
+
+    public Builder hostUploadLimit(String host, long bytesPerSecond) {
+      hostUploadLimits.put(host.toLowerCase(Locale.US), checkLimit(bytesPerSecond));
+      return this;
+    }
+
+    private static long checkLimit(long bytesPerSecond) {
+      if (bytesPerSecond <= 0) throw new IllegalArgumentException("bytesPerSecond <= 0");
+      return bytesPerSecond;
+    }
+
+    public BandwidthLimiter build() {
+      return new BandwidthLimiter(this);
+    }
+  }
+
+  public static void main(String... args) throws Exception {
+    OkHttpClient client = new OkHttpClient.Builder()
+        .addInterceptor(new BandwidthLimiter.Builder()
+            .downloadLimit(256 * 1024)
+            .perHostDownloadLimit(64 * 1024)
+            .build())
+        .build();
+
+    Request request = new Request.Builder()
+        .url("https://publicobject.com/helloworld.txt")
+        .build();
+
+    long start = System.nanoTime();
+    Response response = client.newCall(request).execute();
+    long byteCount = response.body().bytes().length;
+    long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    System.out.format("Read %d bytes in %d ms%n", byteCount, elapsedMs);
+  }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import okhttp3.Cache;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.internal.cache.CacheStrategy;
+import okhttp3.internal.http.HttpHeaders;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Measures how effective a client's cache is. Install as an application interceptor on a client
+ * with a {@link Cache}; every call is classified by how the cache answered it, and the results are
+ * available as a {@link Snapshot}.
+ *
+ * <p>For each {@link Outcome} this records the number of calls and a latency histogram, measured
+ * until the response headers were available. Uncacheable calls and misses are counted by reason.
+ * Bytes served from the cache, including bodies confirmed by a {@code 304}, are counted as saved.
+ * The most frequently missed URLs are tracked with a fixed-size heavy-hitter sketch, so memory use
+ * doesn't grow with the number of distinct URLs.
+ *
+ * <p>Recording is lock-free except for the heavy-hitter sketch, which is only updated on misses.
+ */
+public final class CacheMetrics implements Interceptor {
+  public enum Outcome {
+    /** Served from the cache without contacting the server. */
+    HIT,
+    /** Revalidated with the server, which answered {@code 304 Not Modified}. */
+    CONDITIONAL_HIT,
+    /** Cacheable, but fetched from the server. */
+    MISS,
+    /** Not eligible for caching. */
+    UNCACHEABLE
+  }
+
+  /** Latencies are bucketed by powers of two of microseconds, from 1 us to over 30 minutes. */
+  private static final int LATENCY_BUCKETS = 32;
+
+  private final EnumMap<Outcome, AtomicLong> counts = new EnumMap<>(Outcome.class);
+  private final EnumMap<Outcome, AtomicLongArray> latencies = new EnumMap<>(Outcome.class);
+  private final ConcurrentMap<String, AtomicLong> reasons = new ConcurrentHashMap<>();
+  private final AtomicLong bytesSaved = new AtomicLong();
+  private final SpaceSaving topMisses;
+
+  /** @param topMissCount the number of most-missed URLs to track. */
+  public CacheMetrics(int topMissCount) {
+    for (Outcome outcome : Outcome.values()) {
+      counts.put(outcome, new AtomicLong());
+      latencies.put(outcome, new AtomicLongArray(LATENCY_BUCKETS));
+    }
+    this.topMisses = new SpaceSaving(topMissCount);
+  }
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    long start = System.nanoTime();
+    Response response = chain.proceed(request);
+    long tookNanos = System.nanoTime() - start;
+
+    Outcome outcome;
+    String reason;
+    Response network = response.networkResponse();
+    Response cached = response.cacheResponse();
+    if (network == null && cached != null) {
+      outcome = Outcome.HIT;
+      reason = null;
+    } else if (network != null && network.code() == 304 && cached != null) {
+      outcome = Outcome.CONDITIONAL_HIT;
+      reason = null;
+    } else if (network == null) {
+      outcome = Outcome.MISS;
+      reason = "only-if-cached"; // Nothing servable in the cache and the network was forbidden.
+    } else {
+      reason = uncacheableReason(request, network);
+      if (reason != null) {
+        outcome = Outcome.UNCACHEABLE;
+      } else {
+        outcome = Outcome.MISS;
+        if (cached != null) {
+          reason = "changed"; // Revalidated, but the server sent a new body.
+        } else if (request.cacheControl().noCache()) {
+          reason = "no-cache";
+        } else {
+          reason = "absent";
+        }
+      }
+    }
+
+    record(outcome, reason, tookNanos);
+    if (outcome == Outcome.MISS) topMisses.add(request.url().toString());
+    if (outcome == Outcome.HIT || outcome == Outcome.CONDITIONAL_HIT) {
+      return countSaved(response);
+    }
+    return response;
+  }
+
+  /** Returns why {@code network} can't be cached, or null if it can. */
+  private static String uncacheableReason(Request request, Response network) {
+    if (!request.method().equals("GET")) return "method";
+    if (request.cacheControl().noStore()) return "request-no-store";
+    if (network.cacheControl().noStore()) return "response-no-store";
+    if (HttpHeaders.hasVaryAll(network)) return "vary-all";
+    if (!CacheStrategy.isCacheable(network, request)) return "status-" + network.code();
+    return null;
+  }
+
+  private void record(Outcome outcome, String reason, long tookNanos) {
+    counts.get(outcome).incrementAndGet();
+    long micros = Math.max(1L, TimeUnit.NANOSECONDS.toMicros(tookNanos));
+    int bucket = Math.min(LATENCY_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+    latencies.get(outcome).incrementAndGet(bucket);
+
+    if (reason == null) return;
+    String key = outcome.name() + ": " + reason;
+    AtomicLong count = reasons.get(key);
+    if (count == null) {
+      AtomicLong created = new AtomicLong();
+      count = reasons.putIfAbsent(key, created);
+      if (count == null) count = created;
+    }
+    count.incrementAndGet();
+  }
+
+  /** Counts the body bytes the cache supplied as they're read. */
+  private Response countSaved(Response response) {
+    ResponseBody body = response.body();
+    if (body == null) return response;
+    return response.newBuilder()
+        .body(ResponseBody.create(body.contentType(), body.contentLength(),
+            Okio.buffer(new ForwardingSource(body.source()) {
+              @Override public long read(Buffer sink, long byteCount) throws IOException {
+                long read = super.read(sink, byteCount);
+                if (read > 0) bytesSaved.addAndGet(read);
+                return read;
+              }
+            })))
+        .build();
+  }
+
+  public Snapshot snapshot() {
+    Map<Outcome, Long> countsCopy = new EnumMap<>(Outcome.class);
+    Map<Outcome, long[]> latenciesCopy = new EnumMap<>(Outcome.class);
+    for (Outcome outcome : Outcome.values()) {
+      countsCopy.put(outcome, counts.get(outcome).get());
+      AtomicLongArray histogram = latencies.get(outcome);
+      long[] copy = new long[LATENCY_BUCKETS];
+      for (int i = 0; i < LATENCY_BUCKETS; i++) {
+        copy[i] = histogram.get(i);
+      }
+      latenciesCopy.put(outcome, copy);
+    }
+    Map<String, Long> reasonsCopy = new TreeMap<>();
+    for (Map.Entry<String, AtomicLong> entry : reasons.entrySet()) {
+      reasonsCopy.put(entry.getKey(), entry.getValue().get());
+    }
+    return new Snapshot(countsCopy, latenciesCopy, reasonsCopy, bytesSaved.get(),
+        topMisses.top());
+  }
+
+  /** An immutable view of the metrics at one moment. */
+  public static final class Snapshot {
+    private final Map<Outcome, Long> counts;
+    private final Map<Outcome, long[]> latencies;
+    private final Map<String, Long> reasons;
+    private final long bytesSaved;
+    private final Map<String, Long> topMisses;
+
+    Snapshot(Map<Outcome, Long> counts, Map<Outcome, long[]> latencies,
+        Map<String, Long> reasons, long bytesSaved, Map<String, Long> topMisses) {
+      this.counts = counts;
+      this.latencies = latencies;
+      this.reasons = Collections.unmodifiableMap(reasons);
+      this.bytesSaved = bytesSaved;
+      this.topMisses = Collections.unmodifiableMap(topMisses);
+    }
+
+    public long count(Outcome outcome) {
+      return counts.get(outcome);
+    }
+
+    public long requestCount() {
+      long total = 0;
+      for (long count : counts.values()) {
+        total += count;
+      }
+      return total;
+    }
+
+    /** Returns the fraction of calls answered without transferring a body from the server. */
+    public double hitRatio() {
+      long total = requestCount();
+      return total == 0 ? 0.0
+          : (double) (count(Outcome.HIT) + count(Outcome.CONDITIONAL_HIT)) / total;
+    }
+
+    /**
+     * Returns an upper bound on the {@code percentile} latency of calls with {@code outcome}, in
+     * microseconds, accurate to within a factor of two. Returns 0 if there were no such calls.
+     */
+    public long latencyMicros(Outcome outcome, double percentile) {
+      long[] histogram = latencies.get(outcome);
+      long rank = (long) Math.ceil(count(outcome) * percentile / 100.0);
+      long seen = 0;
+      for (int i = 0; i < histogram.length; i++) {
+        seen += histogram[i];
+        if (seen >= rank && seen > 0) return (2L << i) - 1;
+      }
+      return 0L;
+    }
+
+    /** Returns counts of uncacheable calls and misses, keyed like "MISS: absent". */
+    public Map<String, Long> reasons() {
+      return reasons;
+    }
+
+    public long bytesSaved() {
+      return bytesSaved;
+    }
+
+    /**
+     * Returns the most missed URLs, most missed first. Counts are estimates that may overcount by
+     * at most the smallest count tracked.
+     */
+    public Map<String, Long> topMisses() {
+      return topMisses;
+    }
+
+    @Override public String toString() {
+      StringBuilder result = new StringBuilder();
+      result.append(String.format("requests=%d hitRatio=%.3f bytesSaved=%d%n",
+          requestCount(), hitRatio(), bytesSaved));
+      for (Outcome outcome : Outcome.values()) {
+        result.append(String.format("  %-15s count=%-6d p50=%dus p99=%dus%n", outcome,
+            count(outcome), latencyMicros(outcome, 50), latencyMicros(outcome, 99)));
+      }
+      for (Map.Entry<String, Long> entry : reasons.entrySet()) {
+        result.append(String.format("  %s: %d%n", entry.getKey(), entry.getValue()));
+      }
+      for (Map.Entry<String, Long> entry : topMisses.entrySet()) {
+        result.append(String.format("  missed %d times: %s%n", entry.getValue(), entry.getKey()));
+      }
+      return result.toString();
+    }
+  }
+
+  /**
+   * The Space-Saving heavy-hitter algorithm: tracks at most {@code capacity} keys, and when a new
+   * key arrives while full it replaces the key with the smallest count, inheriting that count.
+   * Any key occurring more than {@code total / capacity} times is guaranteed to be tracked.
+   */
+  static final class SpaceSaving {
+    private final int capacity;
+    private final HashMap<String, long[]> counts = new HashMap<>();
+
+    SpaceSaving(int capacity) {
+      if (capacity <= 0) throw new IllegalArgumentException("capacity <= 0");
+      this.capacity = capacity;
+    }
+
+    synchronized void add(String key) {
+      long[] count = counts.get(key);
+      if (count != null) {
+        count[0]++;
+        return;
+      }
+      if (counts.size() < capacity) {
+        counts.put(key, new long[] {1L});
+        return;
+      }
+      String minKey = null;
+      long[] min = null;
+      for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+        if (min == null || entry.getValue()[0] < min[0]) {
+          minKey = entry.getKey();
+          min = entry.getValue();
+        }
+      }
+      counts.remove(minKey);
+      min[0]++;
+      counts.put(key, min);
+    }
+
+    synchronized Map<String, Long> top() {
+      List<Map.Entry<String, long[]>> entries = new ArrayList<>(counts.entrySet());
+      Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+        @Override public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+          return Long.compare(b.getValue()[0], a.getValue()[0]);
+        }
+      });
+      Map<String, Long> result = new LinkedHashMap<>();
+      for (Map.Entry<String, long[]> entry : entries) {
+        result.put(entry.getKey(), entry.getValue()[0]);
+      }
+      return result;
+    }
+  }
+
+  public static void main(String... args) throws Exception {
+    CacheMetrics metrics = new CacheMetrics(16);
+    OkHttpClient client = new OkHttpClient.Builder()
+        .cache(new Cache(new File("CacheMetrics.tmp"), 10 * 1024 * 1024))
+        .addInterceptor(metrics)
+        .build();
+
+    Request request = new Request.Builder()
+        .url("http://publicobject.com/helloworld.txt")
+        .build();
+    for (int i = 0; i < 5; i++) {
+      try (Response response = client.newCall(request).execute()) {
+        response.body().string();
+      }
+    }
+
+    System.out.println(metrics.snapshot());
+  }
+}
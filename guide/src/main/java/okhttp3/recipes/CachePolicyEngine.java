@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.Cache;
+import okhttp3.CacheControl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Chooses how each request uses the cache, instead of callers setting {@link
+ * CacheControl#FORCE_NETWORK} or {@link CacheControl#FORCE_CACHE} by hand. Rules are consulted in
+ * order and the first that matches picks a {@link Policy}; a policy is a set of request cache
+ * directives, such as "accept responses up to 10 minutes stale".
+ *
+ * <p>Rules can look at the request's route, whether the device is {@link Connectivity connected},
+ * and the recent latency of network responses. Entry age is handled by the policy's directives:
+ * OkHttp's cache compares them against each entry's age, so a decision never reads the cache. A
+ * decision costs a few field reads per rule, which keeps latency predictable for the calls that
+ * users are waiting on.
+ *
+ * <p>Decisions are observable: each is counted by policy name, and can be reported to a {@link
+ * Listener}. Requests that already carry a {@code Cache-Control} header are left alone, so callers
+ * can still override the engine.
+ *
+ * <p>Install as an application interceptor on a client with a cache.
+ */
+public final class CachePolicyEngine implements Interceptor {
+  /** Reports whether the network is reachable, for example from Android's ConnectivityManager. */
+  public interface Connectivity {
+    boolean isConnected();
+  }
+
+  /** Picks a policy for a request, or returns null to defer to the next rule. */
+  public interface Rule {
+    Policy select(Request request, Conditions conditions);
+  }
+
+  /** Receives each decision. Called on the calling thread, so it should be fast. */
+  public interface Listener {
+    void onDecision(Request request, Policy policy, Conditions conditions);
+  }
+
+  /** Request cache directives to apply, and a name to count and report them by. */
+  public static final class Policy {
+    /** Normal HTTP caching: fresh entries are used, stale ones are revalidated. */
+    public static final Policy DEFAULT = new Policy("default", null);
+
+    /** Skip the cache. The response is still stored for later. */
+    public static final Policy NETWORK = new Policy("network", CacheControl.FORCE_NETWORK);
+
+    /** Use any cached response, however stale, and never the network. Misses fail with 504. */
+    public static final Policy OFFLINE = new Policy("offline", CacheControl.FORCE_CACHE);
+
+    final String name;
+    final CacheControl cacheControl;
+
+    public Policy(String name, CacheControl cacheControl) {
+      if (name == null) throw new NullPointerException("name == null");
+      this.name = name;
+      this.cacheControl = cacheControl;
+    }
+
+    /** Use cached responses up to {@code maxStale} stale, and the network for anything older. */
+    public static Policy staleUpTo(String name, long maxStale, TimeUnit unit) {
+      return new Policy(name, new CacheControl.Builder()
+          .maxStale((int) Math.min(unit.toSeconds(maxStale), Integer.MAX_VALUE), TimeUnit.SECONDS)
+          .build());
+    }
+
+    /** Use cached responses no older than {@code maxAge}, even if the server says they're fresh. */
+    public static Policy maxAge(String name, long maxAge, TimeUnit unit) {
+      return new Policy(name, new CacheControl.Builder()
+          .maxAge((int) Math.min(unit.toSeconds(maxAge), Integer.MAX_VALUE), TimeUnit.SECONDS)
+          .build());
+    }
+
+    public String name() {
+      return name;
+    }
+
+    @Override public String toString() {
+      return cacheControl != null ? name + " (" + cacheControl + ")" : name;
+    }
+  }
+
+  /** What rules decide on. Latencies are -1 when there are no recent network responses. */
+  public static final class Conditions {
+    final boolean connected;
+    final long p50Millis;
+    final long p95Millis;
+
+    Conditions(boolean connected, long p50Millis, long p95Millis) {
+      this.connected = connected;
+      this.p50Millis = p50Millis;
+      this.p95Millis = p95Millis;
+    }
+
+    public boolean connected() {
+      return connected;
+    }
+
+    /** The median time from sending a request to receiving its response headers. */
+    public long p50Millis() {
+      return p50Millis;
+    }
+
+    /** The 95th percentile time from sending a request to receiving its response headers. */
+    public long p95Millis() {
+      return p95Millis;
+    }
+
+    @Override public String toString() {
+      return "connected=" + connected + " p50=" + p50Millis + "ms p95=" + p95Millis + "ms";
+    }
+  }
+
+  private final List<Rule> rules;
+  private final Policy defaultPolicy;
+  private final Connectivity connectivity;
+  private final Listener listener;
+  private final LatencyWindow latency;
+  private final ConcurrentMap<String, AtomicLong> decisionCounts = new ConcurrentHashMap<>();
+
+  CachePolicyEngine(Builder builder) {
+    this.rules = new ArrayList<>(builder.rules);
+    this.defaultPolicy = builder.defaultPolicy;
+    this.connectivity = builder.connectivity;
+    this.listener = builder.listener;
+    this.latency = new LatencyWindow(builder.latencySamples, builder.latencyWindowNanos);
+  }
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    if (!request.method().equals("GET") || request.header("Cache-Control") != null) {
+      Response response = chain.proceed(request);
+      record(response);
+      return response;
+    }
+
+    Conditions conditions = conditions();
+    Policy policy = decide(request, conditions);
+    AtomicLong count = decisionCounts.get(policy.name);
+    if (count == null) {
+      AtomicLong created = new AtomicLong();
+      count = decisionCounts.putIfAbsent(policy.name, created);
+      if (count == null) count = created;
+    }
+    count.incrementAndGet();
+    if (listener != null) listener.onDecision(request, policy, conditions);
+
+    if (policy.cacheControl != null) {
+      request = request.newBuilder().cacheControl(policy.cacheControl).build();
+    }
+    Response response = chain.proceed(request);
+    record(response);
+    return response;
+  }
+
+  private Policy decide(Request request, Conditions conditions) {
+    for (int i = 0, size = rules.size(); i < size; i++) {
+      Policy policy = rules.get(i).select(request, conditions);
+      if (policy != null) return policy;
+    }
+    return defaultPolicy;
+  }
+
+  /** Returns the current conditions. */
+  public Conditions conditions() {
+    long now = System.nanoTime();
+    return new Conditions(connectivity.isConnected(),
+        latency.percentile(50, now), latency.percentile(95, now));
+  }
+
+  /** Returns the number of decisions made for each policy, by policy name. */
+  public Map<String, Long> decisionCounts() {
+    Map<String, Long> result = new LinkedHashMap<>();
+    for (Map.Entry<String, AtomicLong> entry : decisionCounts.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().get());
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  /** Samples the header latency of responses that went to the network. */
+  private void record(Response response) {
+    Response network = response.networkResponse();
+    if (network == null) return;
+    long millis = network.receivedResponseAtMillis() - network.sentRequestAtMillis();
+    if (millis >= 0) latency.record(millis, System.nanoTime());
+  }
+
+  /**
+   * The most recent latency samples. Percentiles are computed when a sample is recorded, which
+   * happens at most once per network response, so reading them is cheap. Once no sample has been
+   * recorded for a full window the latency is unknown; this stops a slow spell from steering calls
+   * to the cache indefinitely.
+   */
+  static final class LatencyWindow {
+    private final long[] samples;
+    private final long windowNanos;
+    private int count;
+    private int next;
+
+    private volatile long p50 = -1L;
+    private volatile long p95 = -1L;
+    private volatile long lastSampleNanos;
+
+    LatencyWindow(int sampleCount, long windowNanos) {
+      this.samples = new long[sampleCount];
+      this.windowNanos = windowNanos;
+    }
+
+    synchronized void record(long millis, long nowNanos) {
+      samples[next] = millis;
+      next = (next + 1) % samples.length;
+      if (count < samples.length) count++;
+
+      long[] sorted = Arrays.copyOf(samples, count);
+      Arrays.sort(sorted);
+      p50 = sorted[rank(50, count)];
+      p95 = sorted[rank(95, count)];
+      lastSampleNanos = nowNanos;
+    }
+
+    /** Returns the nearest-rank index of {@code percentile} in {@code count} sorted samples. */
+    static int rank(int percentile, int count) {
+      return (percentile * count + 99) / 100 - 1;
+    }
+
+    long percentile(int percentile, long nowNanos) {
+      if (p95 == -1L || nowNanos - lastSampleNanos > windowNanos) return -1L;
+      return percentile == 50 ? p50 : p95;
+    }
+  }
+
+  public static final class Builder {
+    final List<Rule> rules = new ArrayList<>();
+    Policy defaultPolicy = Policy.DEFAULT;
+    Connectivity connectivity = new Connectivity() {
+      @Override public boolean isConnected() {
+        return true;
+      }
+    };
+    Listener listener;
+    int latencySamples = 64;
+    long latencyWindowNanos = TimeUnit.MINUTES.toNanos(1);
+
+    public Builder connectivity(Connectivity connectivity) {
+      if (connectivity == null) throw new NullPointerException("connectivity == null");
+      this.connectivity = connectivity;
+      return this;
+    }
+
+    public Builder listener(Listener listener) {
+      this.listener = listener;
+      return this;
+    }
+
+    /** Sets how many recent network responses latency percentiles are computed over. */
+    public Builder latencySamples(int latencySamples) {
+      if (latencySamples <= 0) throw new IllegalArgumentException("latencySamples <= 0");
+      this.latencySamples = latencySamples;
+      return this;
+    }
+
+    /** Sets how long latency samples are trusted without a new one. */
+    public Builder latencyWindow(long window, TimeUnit unit) {
+      if (window <= 0) throw new IllegalArgumentException("window <= 0");
+      this.latencyWindowNanos = unit.toNanos(window);
+      return this;
+    }
+
+    /** Adds a rule. Rules are consulted in the order they're added. */
+    public Builder rule(Rule rule) {
+      if (rule == null) throw new NullPointerException("rule == null");
+      rules.add(rule);
+      return this;
+    }
+
+    /** Uses {@code policy} when the device is offline. */
+    public Builder whenOffline(final Policy policy) {
+      return rule(new Rule() {
+        @Override public Policy select(Request request, Conditions conditions) {
+          return conditions.connected ? null : policy;
+        }
+      });
+    }
+
+    /** Uses {@code policy} when the 95th percentile network latency exceeds {@code budget}. */
+    public Builder whenSlowerThan(long budget, TimeUnit unit, final Policy policy) {
+      final long budgetMillis = unit.toMillis(budget);
+      return rule(new Rule() {
+        @Override public Policy select(Request request, Conditions conditions) {
+          return conditions.p95Millis > budgetMillis ? policy : null;
+        }
+      });
+    }
+
+    /** Uses {@code policy} for requests to {@code host} whose path starts with {@code prefix}. */
+    public Builder route(final String host, final String pathPrefix, final Policy policy) {
+      return rule(new Rule() {
+        @Override public Policy select(Request request, Conditions conditions) {
+          return request.url().host().equals(host)
+              && request.url().encodedPath().startsWith(pathPrefix)
+              ? policy
+              : null;
+        }
+      });
+    }
+
+    /** Sets the policy to use when no rule matches. */
+    public Builder defaultPolicy(Policy policy) {
+      if (policy == null) throw new NullPointerException("policy == null");
+      this.defaultPolicy = policy;
+      return this;
+    }
+
+    public CachePolicyEngine build() {
+      return new CachePolicyEngine(this);
+    }
+  }
+
+  public static void main(String... args) throws Exception {
+    final AtomicBoolean connected = new AtomicBoolean(true);
+    CachePolicyEngine engine = new CachePolicyEngine.Builder()
+        .connectivity(new Connectivity() {
+          @Override public boolean isConnected() {
+            return connected.get();
+          }
+        })
+        .whenOffline(Policy.OFFLINE)
+        .route("api.github.com", "/repos/", Policy.NETWORK)
+        .whenSlowerThan(300, TimeUnit.MILLISECONDS,
+            Policy.staleUpTo("slow-network", 10, TimeUnit.MINUTES))
+        .listener(new Listener() {
+          @Override public void onDecision(Request request, Policy policy, Conditions conditions) {
+            System.out.println(request.url() + ": " + policy + " [" + conditions + "]");
+          }
+        })
+        .build();
+
+    OkHttpClient client = new OkHttpClient.Builder()
+        .cache(new Cache(new File("CachePolicyEngine.tmp"), 10 * 1024 * 1024))
+        .addInterceptor(engine)
+        .build();
+
+    Request request = new Request.Builder()
+        .url("http://publicobject.com/helloworld.txt")
+        .build();
+    for (int i = 0; i < 3; i++) {
+      if (i == 2) connected.set(false); // Airplane mode.
+      try (Response response = client.newCall(request).execute()) {
+        response.body().string();
+        System.out.println("  " + response + " cache=" + (response.cacheResponse() != null));
+      }
+    }
+    System.out.println("Decisions: " + engine.decisionCounts());
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.Cache;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.internal.Util;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Fills a client's disk cache ahead of demand, for example right after a deploy when the cache
+ * directory is cold. URLs are fetched through the caching client, so entries that are already
+ * fresh cost only a cache lookup, and stale entries with validators are revalidated.
+ *
+ * <p>Prefetches run on their own {@link Dispatcher}, whose limits bound their parallelism, and
+ * on minimum-priority threads, so warm-up traffic doesn't crowd out calls that users are waiting
+ * on. They share the client's cache and connection pool.
+ */
+public final class CacheWarmup {
+  /** Receives warm-up progress. Called on prefetch threads. */
+  public interface Listener {
+    void onProgress(int completed, int failed, int total);
+  }
+
+  private final OkHttpClient client;
+
+  /**
+   * @param client a client with a cache.
+   * @param parallelism the maximum number of prefetches in flight.
+   */
+  public CacheWarmup(OkHttpClient client, int parallelism) {
+    if (client.cache() == null) throw new IllegalArgumentException("client has no cache");
+    if (parallelism <= 0) throw new IllegalArgumentException("parallelism <= 0");
+
+    Dispatcher dispatcher = new Dispatcher(new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60,
+        TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          @Override public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "OkHttp Cache Warmup");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+          }
+        }));
+    dispatcher.setMaxRequests(parallelism);
+    dispatcher.setMaxRequestsPerHost(parallelism);
+    this.client = client.newBuilder()
+        .dispatcher(dispatcher)
+        .build();
+  }
+
+  /** Starts fetching {@code urls} and returns immediately. */
+  public Warmup prefetch(List<HttpUrl> urls, final Listener listener) {
+    final Warmup warmup = new Warmup(urls.size());
+    for (HttpUrl url : urls) {
+      Call call = client.newCall(new Request.Builder().url(url).build());
+      warmup.calls.add(call);
+      call.enqueue(new Callback() {
+        @Override public void onFailure(Call call, IOException e) {
+          warmup.failed.incrementAndGet();
+          warmup.finish(listener);
+        }
+
+        @Override public void onResponse(Call call, Response response) throws IOException {
+          try {
+            // The cache only commits an entry once its body has been read to the end.
+            BufferedSource source = response.body().source();
+            Buffer discard = new Buffer();
+            while (source.read(discard, 8192) != -1) {
+              discard.clear();
+            }
+            if (!response.isSuccessful()) warmup.failed.incrementAndGet();
+          } catch (IOException e) {
+            warmup.failed.incrementAndGet();
+          } finally {
+            response.close();
+            warmup.finish(listener);
+          }
+        }
+      });
+    }
+    return warmup;
+  }
+
+  /** A warm-up in progress. */
+  public static final class Warmup {
+    final List<Call> calls = new ArrayList<>();
+    final int total;
+    final AtomicInteger completed = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final CountDownLatch done;
+
+    Warmup(int total) {
+      this.total = total;
+      this.done = new CountDownLatch(total);
+    }
+
+    void finish(Listener listener) {
+      synchronized (this) { // Report progress in order.
+        int completed = this.completed.incrementAndGet();
+        if (listener != null) listener.onProgress(completed, failed.get(), total);
+      }
+      done.countDown();
+    }
+
+    public int total() {
+      return total;
+    }
+
+    public int completed() {
+      return completed.get();
+    }
+
+    public int failed() {
+      return failed.get();
+    }
+
+    /** Returns true if every prefetch finished within the timeout. */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+      return done.await(timeout, unit);
+    }
+
+    /** Cancels the prefetches that haven't finished. */
+    public void cancel() {
+      for (Call call : calls) {
+        call.cancel();
+      }
+    }
+  }
+
+  /** The state of a cache directory's journal, as judged by {@link #checkJournal}. */
+  public enum JournalState {
+    /** There is no journal; the cache is empty. */
+    ABSENT,
+    /** The journal's header is intact. Its entries haven't been read. */
+    HEADER_VALID,
+    /** The journal's header is damaged or from another version; the cache will be discarded. */
+    CORRUPT
+  }
+
+  /**
+   * Checks a cache directory's journal without reading its entries. This only reads the journal's
+   * five-line header, so it takes the same time however large the cache is. The full journal is
+   * read by {@link Cache#initialize()}, which OkHttp otherwise calls on the first cached request.
+   */
+  public static JournalState checkJournal(File cacheDirectory) {
+    File journal = new File(cacheDirectory, "journal");
+    if (!journal.exists()) {
+      journal = new File(cacheDirectory, "journal.bkp"); // An interrupted rebuild.
+      if (!journal.exists()) return JournalState.ABSENT;
+    }
+
+    BufferedSource source = null;
+    try {
+      source = Okio.buffer(Okio.source(journal));
+      String magic = source.readUtf8LineStrict();
+      String version = source.readUtf8LineStrict();
+      String appVersion = source.readUtf8LineStrict();
+      String valueCount = source.readUtf8LineStrict();
+      String blank = source.readUtf8LineStrict();
+      return magic.equals("libcore.io.DiskLruCache")
+          && version.equals("1")
+          && appVersion.equals("201105")
+          && valueCount.equals("2")
+          && blank.isEmpty()
+          ? JournalState.HEADER_VALID
+          : JournalState.CORRUPT;
+    } catch (IOException e) {
+      return JournalState.CORRUPT;
+    } finally {
+      Util.closeQuietly(source);
+    }
+  }
+
+  /**
+   * Reads {@code cache}'s journal on {@code executor}, so that neither building the client nor
+   * its first request waits for a large journal to be read.
+   */
+  public static void initializeInBackground(final Cache cache, Executor executor) {
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          cache.initialize();
+        } catch (IOException e) {
+          // The cache will retry, and rebuild the journal if necessary, on first use.
+        }
+      }
+    });
+  }
+
+  public static void main(String... args) throws Exception {
+    File directory = new File("CacheWarmup.tmp");
+    System.out.println("Journal: " + checkJournal(directory));
+
+    Cache cache = new Cache(directory, 10 * 1024 * 1024);
+    OkHttpClient client = new OkHttpClient.Builder()
+        .cache(cache)
+        .build();
+    initializeInBackground(cache, client.dispatcher().executorService());
+
+    List<HttpUrl> urls = new ArrayList<>();
+    urls.add(HttpUrl.parse("http://publicobject.com/helloworld.txt"));
+    urls.add(HttpUrl.parse("https://square.github.io/okhttp/"));
+    urls.add(HttpUrl.parse("https://square.github.io/okio/"));
+
+    Warmup warmup = new CacheWarmup(client, 2).prefetch(urls, new Listener() {
+      @Override public void onProgress(int completed, int failed, int total) {
+        System.out.format("%d of %d prefetched, %d failed%n", completed, total, failed);
+      }
+    });
+    warmup.await(1, TimeUnit.MINUTES);
+    System.out.println("Cache size: " + cache.size() + " bytes");
+  }
+}
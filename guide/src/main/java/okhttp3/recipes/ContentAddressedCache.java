@@ -0,0 +1,839 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import okhttp3.CipherSuite;
+import okhttp3.Handshake;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.TlsVersion;
+import okhttp3.internal.Internal;
+import okhttp3.internal.Util;
+import okhttp3.internal.cache.CacheRequest;
+import okhttp3.internal.cache.CacheStrategy;
+import okhttp3.internal.cache.DiskLruCache;
+import okhttp3.internal.cache.InternalCache;
+import okhttp3.internal.http.HttpHeaders;
+import okhttp3.internal.http.HttpMethod;
+import okhttp3.internal.http.StatusLine;
+import okhttp3.internal.io.FileSystem;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+import okio.Sink;
+import okio.Source;
+import okio.Timeout;
+
+/**
+ * A response cache that stores each distinct body once. Bodies are stored in files named by the
+ * SHA-256 of their contents and shared by every URL that returned them; per-URL metadata (the
+ * request's vary headers, the response's status and headers, and the TLS handshake) lives in a
+ * {@link DiskLruCache} and names its body by hash. Sites that serve the same bytes under many URLs,
+ * such as versioned asset paths, mirrors, and the error pages a crawler collects, take the space
+ * of one copy.
+ *
+ * <p>Each body tracks the URLs that reference it, and is deleted when the last of them is removed
+ * or replaced. Eviction keeps the two in step: when the bodies exceed the size limit the least
+ * recently used body is evicted along with every URL that references it, and when the metadata
+ * exceeds its limit the least recently used URLs are evicted and release their bodies. References
+ * aren't persisted; they're rebuilt from the metadata the first time the cache is used, which also
+ * deletes bodies that no URL references.
+ *
+ * <p>Bodies can optionally be stored compressed. They're gzipped at the fastest level as they
+ * stream in and gunzipped as they stream out on a hit, and the size limit counts compressed bytes,
+ * so text-heavy caches hold several times more. Bodies that are already compressed, by {@code
+ * Content-Encoding} or by format (as recognized by {@link ContentSniffer#binarySignature}), are
+ * stored as-is.
+ *
+ * <p>This plugs into OkHttp as its internal cache, so freshness, revalidation and {@code Vary}
+ * are handled exactly as with {@link okhttp3.Cache}. Install it with {@link #install}.
+ */
+public final class ContentAddressedCache implements InternalCache, Closeable, Flushable {
+  private static final int VERSION = 201609;
+  private static final int ENTRY_METADATA = 0;
+  private static final String COMPRESSED_SUFFIX = ".gz";
+
+  private final File blobDirectory;
+  private final DiskLruCache metadata;
+  private final long maxSize;
+  private final long maxMetadataSize;
+  private final boolean compressBodies;
+
+  /** Guarded by this. Bodies by hash, least recently used first. */
+  private final LinkedHashMap<String, Blob> blobs = new LinkedHashMap<>(0, 0.75f, true);
+  private long size;
+  private long uncompressedSize;
+  private boolean initialized;
+  private int requestCount;
+  private int networkCount;
+  private int hitCount;
+  private int writeCount;
+  private int dedupCount;
+
+  public ContentAddressedCache(File directory, long maxSize) {
+    this(directory, maxSize, false);
+  }
+
+  /**
+   * @param maxSize the limit on the bytes of bodies stored, after compression. Metadata is limited
+   *     separately to an eighth of this.
+   * @param compressBodies true to store compressible bodies gzipped.
+   */
+  public ContentAddressedCache(File directory, long maxSize, boolean compressBodies) {
+    this.compressBodies = compressBodies;
+    this.blobDirectory = new File(directory, "bodies");
+    // Metadata is trimmed here rather than by DiskLruCache, so evicted URLs release their bodies.
+    this.metadata = DiskLruCache.create(FileSystem.SYSTEM, new File(directory, "metadata"),
+        VERSION, 1, Long.MAX_VALUE);
+    this.maxSize = maxSize;
+    this.maxMetadataSize = Math.max(maxSize / 8, 64 * 1024);
+  }
+
+  /** Configures {@code builder} to use this cache. */
+  public OkHttpClient.Builder install(OkHttpClient.Builder builder) {
+    Internal.instance.setCache(builder, this);
+    return builder;
+  }
+
+  static String key(HttpUrl url) {
+    return ByteString.encodeUtf8(url.toString()).md5().hex();
+  }
+
+  /**
+   * Loads the bodies on disk and counts references to them from the metadata. Bodies nothing
+   * refers to are deleted, as are metadata entries whose body is missing.
+   */
+  private synchronized void initialize() throws IOException {
+    if (initialized) return;
+
+    if (!blobDirectory.exists() && !blobDirectory.mkdirs()) {
+      throw new IOException("failed to create " + blobDirectory);
+    }
+    File[] files = blobDirectory.listFiles();
+    if (files == null) throw new IOException("failed to list " + blobDirectory);
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(".tmp")) {
+        file.delete(); // Abandoned by a write that didn't finish.
+      } else if (name.endsWith(COMPRESSED_SUFFIX)) {
+        String hash = name.substring(0, name.length() - COMPRESSED_SUFFIX.length());
+        blobs.put(hash, new Blob(file.length(), true));
+        size += file.length();
+      } else {
+        blobs.put(name, new Blob(file.length(), false));
+        size += file.length();
+      }
+    }
+
+    for (Iterator<DiskLruCache.Snapshot> i = metadata.snapshots(); i.hasNext(); ) {
+      DiskLruCache.Snapshot snapshot = i.next();
+      try {
+        Entry entry = Entry.read(snapshot.getSource(ENTRY_METADATA));
+        Blob blob = blobs.get(entry.bodyHash);
+        if (blob != null) {
+          if (blob.keys.isEmpty()) {
+            blob.uncompressedLength = entry.bodyLength;
+            uncompressedSize += entry.bodyLength;
+          }
+          blob.keys.add(snapshot.key());
+        } else {
+          i.remove();
+        }
+      } catch (IOException e) {
+        i.remove();
+      } finally {
+        snapshot.close();
+      }
+    }
+
+    for (Iterator<Map.Entry<String, Blob>> i = blobs.entrySet().iterator(); i.hasNext(); ) {
+      Map.Entry<String, Blob> blob = i.next();
+      if (blob.getValue().keys.isEmpty()) {
+        blobFile(blob.getKey(), blob.getValue()).delete();
+        size -= blob.getValue().length;
+        i.remove();
+      }
+    }
+
+    initialized = true;
+    trimToSize();
+  }
+
+  @Override public Response get(Request request) throws IOException {
+    initialize();
+    String key = key(request.url());
+    Entry entry = readEntry(key);
+    if (entry == null || !entry.matches(request)) return null;
+
+    Blob blob;
+    synchronized (this) {
+      blob = blobs.get(entry.bodyHash);
+      if (blob == null) {
+        metadata.remove(key); // The body was evicted.
+        return null;
+      }
+    }
+
+    Source source;
+    try {
+      source = Okio.source(blobFile(entry.bodyHash, blob));
+    } catch (FileNotFoundException e) {
+      return null; // Evicted since we looked.
+    }
+    if (blob.compressed) {
+      source = ZlibPool.DEFAULT.gunzip(Okio.buffer(source));
+    }
+    return entry.response(new BlobResponseBody(entry, source));
+  }
+
+  private Entry readEntry(String key) {
+    DiskLruCache.Snapshot snapshot = null;
+    try {
+      snapshot = metadata.get(key);
+      return snapshot != null ? Entry.read(snapshot.getSource(ENTRY_METADATA)) : null;
+    } catch (IOException e) {
+      return null;
+    } finally {
+      Util.closeQuietly(snapshot);
+    }
+  }
+
+  @Override public CacheRequest put(Response response) throws IOException {
+    String requestMethod = response.request().method();
+    if (HttpMethod.invalidatesCache(requestMethod)) {
+      remove(response.request());
+      return null;
+    }
+    if (!requestMethod.equals("GET") || HttpHeaders.hasVaryAll(response)) {
+      return null;
+    }
+
+    initialize();
+    File temp = new File(blobDirectory,
+        Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+    return new BodyWriter(key(response.request().url()), new Entry(response), temp);
+  }
+
+  /**
+   * Records that {@code key}'s response has the body in {@code temp}. If an identical body is
+   * already stored, {@code temp} is discarded and the stored copy is shared.
+   */
+  synchronized void commit(String key, Entry entry, File temp, boolean compressed)
+      throws IOException {
+    Blob blob = blobs.get(entry.bodyHash);
+    if (blob != null) {
+      temp.delete();
+      dedupCount++;
+    } else {
+      blob = new Blob(temp.length(), compressed);
+      if (!temp.renameTo(blobFile(entry.bodyHash, blob))) {
+        temp.delete();
+        throw new IOException("failed to rename " + temp);
+      }
+      blob.uncompressedLength = entry.bodyLength;
+      blobs.put(entry.bodyHash, blob);
+      size += blob.length;
+      uncompressedSize += blob.uncompressedLength;
+    }
+
+    Entry previous = readEntry(key);
+    DiskLruCache.Editor editor = metadata.edit(key);
+    if (editor == null) {
+      deleteIfUnreferenced(entry.bodyHash, blob); // Another write for this URL is in flight.
+      return;
+    }
+    boolean added = blob.keys.add(key);
+    try {
+      BufferedSink sink = Okio.buffer(editor.newSink(ENTRY_METADATA));
+      entry.writeTo(sink);
+      sink.close();
+      editor.commit();
+      writeCount++;
+    } catch (IOException e) {
+      editor.abortUnlessCommitted();
+      if (added) release(entry.bodyHash, blob, key);
+      throw e;
+    }
+
+    if (previous != null && !previous.bodyHash.equals(entry.bodyHash)) {
+      release(previous.bodyHash, blobs.get(previous.bodyHash), key);
+    }
+    trimToSize();
+  }
+
+  /** Drops {@code key}'s reference to {@code blob}, deleting it if that was the last. */
+  private void release(String hash, Blob blob, String key) {
+    if (blob == null) return;
+    blob.keys.remove(key);
+    deleteIfUnreferenced(hash, blob);
+  }
+
+  private void deleteIfUnreferenced(String hash, Blob blob) {
+    if (blob.keys.isEmpty() && blobs.get(hash) == blob) {
+      blobs.remove(hash);
+      blobFile(hash, blob).delete();
+      size -= blob.length;
+      uncompressedSize -= blob.uncompressedLength;
+    }
+  }
+
+  /**
+   * Evicts the least recently used bodies with the URLs that reference them, then the least
+   * recently used URLs, until both are within their limits.
+   */
+  private void trimToSize() throws IOException {
+    for (Iterator<Map.Entry<String, Blob>> i = blobs.entrySet().iterator();
+        size > maxSize && i.hasNext(); ) {
+      Map.Entry<String, Blob> eldest = i.next();
+      i.remove();
+      for (String key : eldest.getValue().keys) {
+        metadata.remove(key);
+      }
+      blobFile(eldest.getKey(), eldest.getValue()).delete();
+      size -= eldest.getValue().length;
+      uncompressedSize -= eldest.getValue().uncompressedLength;
+    }
+
+    for (Iterator<DiskLruCache.Snapshot> i = metadata.snapshots();
+        metadata.size() > maxMetadataSize && i.hasNext(); ) {
+      DiskLruCache.Snapshot snapshot = i.next();
+      String bodyHash = null;
+      try {
+        bodyHash = Entry.read(snapshot.getSource(ENTRY_METADATA)).bodyHash;
+      } catch (IOException ignored) {
+        // Unreadable metadata references nothing; drop it all the same.
+      } finally {
+        snapshot.close();
+      }
+      i.remove();
+      if (bodyHash != null) release(bodyHash, blobs.get(bodyHash), snapshot.key());
+    }
+  }
+
+  /** Returns false for bodies that a {@code Content-Encoding} or their type says are compressed. */
+  static boolean isCompressible(Headers responseHeaders) {
+    String contentEncoding = responseHeaders.get("Content-Encoding");
+    if (contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity")) return false;
+    String contentTypeString = responseHeaders.get("Content-Type");
+    MediaType contentType = contentTypeString != null ? MediaType.parse(contentTypeString) : null;
+    if (contentType == null) return true;
+    String type = contentType.type();
+    return !type.equals("image") && !type.equals("video") && !type.equals("audio");
+  }
+
+  private File blobFile(String hash, Blob blob) {
+    return new File(blobDirectory, blob.compressed ? hash + COMPRESSED_SUFFIX : hash);
+  }
+
+  @Override public void remove(Request request) throws IOException {
+    initialize();
+    String key = key(request.url());
+    synchronized (this) {
+      Entry entry = readEntry(key);
+      if (metadata.remove(key) && entry != null) {
+        release(entry.bodyHash, blobs.get(entry.bodyHash), key);
+      }
+    }
+  }
+
+  @Override public void update(Response cached, Response network) {
+    Entry cachedEntry = ((BlobResponseBody) cached.body()).entry;
+    Entry entry = new Entry(network, cachedEntry.bodyHash, cachedEntry.bodyLength);
+    DiskLruCache.Editor editor = null;
+    try {
+      editor = metadata.edit(key(network.request().url()));
+      if (editor == null) return;
+      BufferedSink sink = Okio.buffer(editor.newSink(ENTRY_METADATA));
+      entry.writeTo(sink);
+      sink.close();
+      editor.commit();
+    } catch (IOException e) {
+      if (editor != null) editor.abortUnlessCommitted();
+    }
+  }
+
+  @Override public synchronized void trackConditionalCacheHit() {
+    hitCount++;
+  }
+
+  @Override public synchronized void trackResponse(CacheStrategy cacheStrategy) {
+    requestCount++;
+    if (cacheStrategy.networkRequest != null) {
+      networkCount++;
+    } else if (cacheStrategy.cacheResponse != null) {
+      hitCount++;
+    }
+  }
+
+  /**
+   * Returns the bytes of bodies stored, after compression. Each distinct body is counted once.
+   */
+  public synchronized long size() throws IOException {
+    initialize();
+    return size;
+  }
+
+  /** Returns the bytes of bodies stored, before compression. */
+  public synchronized long uncompressedSize() throws IOException {
+    initialize();
+    return uncompressedSize;
+  }
+
+  public long maxSize() {
+    return maxSize;
+  }
+
+  /** Returns the number of distinct bodies stored. */
+  public synchronized int bodyCount() throws IOException {
+    initialize();
+    return blobs.size();
+  }
+
+  /** Returns the number of bodies that weren't stored because an identical one already was. */
+  public synchronized int dedupCount() {
+    return dedupCount;
+  }
+
+  public synchronized int writeCount() {
+    return writeCount;
+  }
+
+  public synchronized int requestCount() {
+    return requestCount;
+  }
+
+  public synchronized int networkCount() {
+    return networkCount;
+  }
+
+  public synchronized int hitCount() {
+    return hitCount;
+  }
+
+  public synchronized void evictAll() throws IOException {
+    initialize();
+    metadata.evictAll();
+    for (Map.Entry<String, Blob> blob : blobs.entrySet()) {
+      blobFile(blob.getKey(), blob.getValue()).delete();
+    }
+    blobs.clear();
+    size = 0L;
+    uncompressedSize = 0L;
+  }
+
+  @Override public void flush() throws IOException {
+    metadata.flush();
+  }
+
+  @Override public void close() throws IOException {
+    metadata.close();
+  }
+
+  static final class Blob {
+    /** The size of the file, after any compression. */
+    final long length;
+    final boolean compressed;
+    long uncompressedLength;
+    /** The metadata keys of the URLs whose response is this body. */
+    final Set<String> keys = new LinkedHashSet<>();
+
+    Blob(long length, boolean compressed) {
+      this.length = length;
+      this.compressed = compressed;
+    }
+  }
+
+  /** Streams a body to a temporary file, hashing it on the way. */
+  final class BodyWriter implements CacheRequest {
+    private final String key;
+    private final Entry entry;
+    private final File temp;
+    private final MessageDigest digest;
+    /** The temp file's own sink, which {@link #abort} must close however far writing got. */
+    private Sink fileSink;
+    /** Compresses into {@link #fileSink}, or null if the body is stored as-is. */
+    private ZlibPool.DeflateStreamSink compressor;
+    private Sink body;
+    private boolean done;
+
+    BodyWriter(String key, Entry entry, File temp) {
+      this.key = key;
+      this.entry = entry;
+      this.temp = temp;
+      try {
+        this.digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override public Sink body() throws IOException {
+      // Hash the uncompressed bytes, so a body dedups against itself however it's stored.
+      final OutputStream hashing = new OutputStream() {
+        @Override public void write(int b) {
+          digest.update((byte) b);
+        }
+
+        @Override public void write(byte[] data, int offset, int byteCount) {
+          digest.update(data, offset, byteCount);
+        }
+      };
+      body = new Sink() {
+        Sink file;
+        boolean compressed;
+        long length;
+
+        @Override public void write(Buffer source, long byteCount) throws IOException {
+          if (file == null) open(source);
+          source.copyTo(hashing, 0, byteCount);
+          file.write(source, byteCount);
+          length += byteCount;
+        }
+
+        /** Decides from the first bytes whether the body is worth compressing. */
+        private void open(Buffer firstBytes) throws IOException {
+          compressed = compressBodies
+              && isCompressible(entry.responseHeaders)
+              && ContentSniffer.binarySignature(firstBytes) == null;
+          fileSink = Okio.sink(temp);
+          if (compressed) {
+            compressor = new ZlibPool.DeflateStreamSink(
+                ZlibPool.DEFAULT, fileSink, Deflater.BEST_SPEED, true, null);
+          }
+          file = compressed ? compressor : fileSink;
+        }
+
+        @Override public void flush() throws IOException {
+          if (file != null) file.flush();
+        }
+
+        @Override public Timeout timeout() {
+          return Timeout.NONE;
+        }
+
+        @Override public void close() throws IOException {
+          synchronized (BodyWriter.this) {
+            if (done) return;
+            done = true;
+          }
+          if (file == null) open(new Buffer());
+          file.close();
+          entry.bodyHash = ByteString.of(digest.digest()).hex();
+          entry.bodyLength = length;
+          commit(key, entry, temp, compressed);
+        }
+      };
+      return body;
+    }
+
+    @Override public void abort() {
+      synchronized (this) {
+        if (done) return;
+        done = true;
+      }
+      // Closing the body would commit it, so release the deflater and close the file directly.
+      if (compressor != null) compressor.abort();
+      Util.closeQuietly(fileSink);
+      temp.delete();
+    }
+  }
+
+  static final class BlobResponseBody extends ResponseBody {
+    final Entry entry;
+    private final BufferedSource source;
+
+    BlobResponseBody(Entry entry, Source source) {
+      this.entry = entry;
+      this.source = Okio.buffer(source);
+    }
+
+    @Override public MediaType contentType() {
+      String contentType = entry.responseHeaders.get("Content-Type");
+      return contentType != null ? MediaType.parse(contentType) : null;
+    }
+
+    @Override public long contentLength() {
+      return entry.bodyLength;
+    }
+
+    @Override public BufferedSource source() {
+      return source;
+    }
+  }
+
+  /** A response's metadata and the hash of its body. */
+  static final class Entry {
+    final String url;
+    final String requestMethod;
+    final Headers varyHeaders;
+    final Protocol protocol;
+    final int code;
+    final String message;
+    final Headers responseHeaders;
+    final Handshake handshake;
+    final long sentRequestMillis;
+    final long receivedResponseMillis;
+    String bodyHash;
+    long bodyLength;
+
+    Entry(Response response) {
+      this(response, null, -1L);
+    }
+
+    Entry(Response response, String bodyHash, long bodyLength) {
+      this.url = response.request().url().toString();
+      this.requestMethod = response.request().method();
+      this.varyHeaders = HttpHeaders.varyHeaders(response);
+      this.protocol = response.protocol();
+      this.code = response.code();
+      this.message = response.message();
+      this.responseHeaders = response.headers();
+      this.handshake = response.handshake();
+      this.sentRequestMillis = response.sentRequestAtMillis();
+      this.receivedResponseMillis = response.receivedResponseAtMillis();
+      this.bodyHash = bodyHash;
+      this.bodyLength = bodyLength;
+    }
+
+    private Entry(String url, String requestMethod, Headers varyHeaders, Protocol protocol,
+        int code, String message, Headers responseHeaders, Handshake handshake,
+        long sentRequestMillis, long receivedResponseMillis, String bodyHash, long bodyLength) {
+      this.url = url;
+      this.requestMethod = requestMethod;
+      this.varyHeaders = varyHeaders;
+      this.protocol = protocol;
+      this.code = code;
+      this.message = message;
+      this.responseHeaders = responseHeaders;
+      this.handshake = handshake;
+      this.sentRequestMillis = sentRequestMillis;
+      this.receivedResponseMillis = receivedResponseMillis;
+      this.bodyHash = bodyHash;
+      this.bodyLength = bodyLength;
+    }
+
+    /**
+     * Reads an entry written by {@link #writeTo}: the URL and request method, the vary headers,
+     * the status line and response headers, the send and receive times, the body's hash and
+     * length, and for HTTPS the handshake.
+     */
+    static Entry read(Source in) throws IOException {
+      BufferedSource source = Okio.buffer(in);
+      try {
+        String url = source.readUtf8LineStrict();
+        String requestMethod = source.readUtf8LineStrict();
+        Headers varyHeaders = readHeaders(source);
+        StatusLine statusLine = StatusLine.parse(source.readUtf8LineStrict());
+        Headers responseHeaders = readHeaders(source);
+        long sentRequestMillis = readLong(source);
+        long receivedResponseMillis = readLong(source);
+        String bodyHash = source.readUtf8LineStrict();
+        long bodyLength = readLong(source);
+
+        Handshake handshake = null;
+        if (url.startsWith("https://")) {
+          CipherSuite cipherSuite = CipherSuite.forJavaName(source.readUtf8LineStrict());
+          List<Certificate> peerCertificates = readCertificates(source);
+          List<Certificate> localCertificates = readCertificates(source);
+          TlsVersion tlsVersion = TlsVersion.forJavaName(source.readUtf8LineStrict());
+          handshake = Handshake.get(tlsVersion, cipherSuite, peerCertificates, localCertificates);
+        }
+
+        return new Entry(url, requestMethod, varyHeaders, statusLine.protocol, statusLine.code,
+            statusLine.message, responseHeaders, handshake, sentRequestMillis,
+            receivedResponseMillis, bodyHash, bodyLength);
+      } catch (IllegalArgumentException e) {
+        throw new IOException("corrupt cache entry", e);
+      } finally {
+        source.close();
+      }
+    }
+
+    void writeTo(BufferedSink sink) throws IOException {
+      sink.writeUtf8(url).writeByte('\n');
+      sink.writeUtf8(requestMethod).writeByte('\n');
+      writeHeaders(sink, varyHeaders);
+      sink.writeUtf8(new StatusLine(protocol, code, message).toString()).writeByte('\n');
+      writeHeaders(sink, responseHeaders);
+      sink.writeDecimalLong(sentRequestMillis).writeByte('\n');
+      sink.writeDecimalLong(receivedResponseMillis).writeByte('\n');
+      sink.writeUtf8(bodyHash).writeByte('\n');
+      sink.writeDecimalLong(bodyLength).writeByte('\n');
+
+      if (url.startsWith("https://")) {
+        sink.writeUtf8(handshake.cipherSuite().javaName()).writeByte('\n');
+        writeCertificates(sink, handshake.peerCertificates());
+        writeCertificates(sink, handshake.localCertificates());
+        sink.writeUtf8(handshake.tlsVersion().javaName()).writeByte('\n');
+      }
+    }
+
+    boolean matches(Request request) {
+      if (!url.equals(request.url().toString()) || !requestMethod.equals(request.method())) {
+        return false;
+      }
+      for (String field : HttpHeaders.varyFields(responseHeaders)) {
+        if (!varyHeaders.values(field).equals(request.headers(field))) return false;
+      }
+      return true;
+    }
+
+    Response response(ResponseBody body) {
+      Request cacheRequest = new Request.Builder()
+          .url(url)
+          .method(requestMethod, null)
+          .headers(varyHeaders)
+          .build();
+      return new Response.Builder()
+          .request(cacheRequest)
+          .protocol(protocol)
+          .code(code)
+          .message(message)
+          .headers(responseHeaders)
+          .body(body)
+          .handshake(handshake)
+          .sentRequestAtMillis(sentRequestMillis)
+          .receivedResponseAtMillis(receivedResponseMillis)
+          .build();
+    }
+
+    private static Headers readHeaders(BufferedSource source) throws IOException {
+      long count = readLong(source);
+      Headers.Builder headers = new Headers.Builder();
+      for (long i = 0; i < count; i++) {
+        Internal.instance.addLenient(headers, source.readUtf8LineStrict());
+      }
+      return headers.build();
+    }
+
+    private static void writeHeaders(BufferedSink sink, Headers headers) throws IOException {
+      sink.writeDecimalLong(headers.size()).writeByte('\n');
+      for (int i = 0, size = headers.size(); i < size; i++) {
+        sink.writeUtf8(headers.name(i)).writeUtf8(": ").writeUtf8(headers.value(i))
+            .writeByte('\n');
+      }
+    }
+
+    private static long readLong(BufferedSource source) throws IOException {
+      try {
+        return Long.parseLong(source.readUtf8LineStrict());
+      } catch (NumberFormatException e) {
+        throw new IOException(e.getMessage());
+      }
+    }
+
+    private static List<Certificate> readCertificates(BufferedSource source) throws IOException {
+      long count = readLong(source);
+      if (count == 0) return Collections.emptyList();
+      try {
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        List<Certificate> result = new ArrayList<>();
+        for (long i = 0; i < count; i++) {
+          ByteString bytes = ByteString.decodeBase64(source.readUtf8LineStrict());
+          if (bytes == null) throw new IOException("corrupt certificate");
+          result.add(factory.generateCertificate(new Buffer().write(bytes).inputStream()));
+        }
+        return result;
+      } catch (CertificateException e) {
+        throw new IOException(e.getMessage());
+      }
+    }
+
+    private static void writeCertificates(BufferedSink sink, List<Certificate> certificates)
+        throws IOException {
+      sink.writeDecimalLong(certificates.size()).writeByte('\n');
+      try {
+        for (Certificate certificate : certificates) {
+          sink.writeUtf8(ByteString.of(certificate.getEncoded()).base64()).writeByte('\n');
+        }
+      } catch (CertificateEncodingException e) {
+        throw new IOException(e.getMessage());
+      }
+    }
+  }
+
+  public static void main(String... args) throws Exception {
+    String[] urls = {
+        "https://square.github.io/okhttp/",
+        "https://square.github.io/okio/",
+        "https://square.github.io/moshi/"};
+
+    // Fill a plain and a compressed cache with the same pages, then time hits on each.
+    for (boolean compress : new boolean[] {false, true}) {
+      ContentAddressedCache cache = new ContentAddressedCache(
+          new File(compress ? "ContentAddressedCache.gz.tmp" : "ContentAddressedCache.tmp"),
+          10 * 1024 * 1024, compress);
+      OkHttpClient client = cache.install(new OkHttpClient.Builder()).build();
+
+      for (String url : urls) {
+        fetch(client, url);
+      }
+
+      int hits = 100;
+      long start = System.nanoTime();
+      for (int i = 0; i < hits; i++) {
+        fetch(client, urls[i % urls.length]);
+      }
+      long hitMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / hits;
+
+      System.out.format("compress=%s: %d bodies, %d bytes stored for %d bytes (%.1fx), "
+              + "%d us per hit%n",
+          compress, cache.bodyCount(), cache.size(), cache.uncompressedSize(),
+          cache.uncompressedSize() / (double) Math.max(1L, cache.size()), hitMicros);
+      cache.close();
+    }
+  }
+
+  private static void fetch(OkHttpClient client, String url) throws IOException {
+    Request request = new Request.Builder()
+        .url(url)
+        .build();
+    try (Response response = client.newCall(request).execute()) {
+      response.body().bytes();
+    }
+  }
+}
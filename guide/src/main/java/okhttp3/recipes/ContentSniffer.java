@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import okio.Buffer;
+
+/**
+ * Guesses whether a body is human readable text by inspecting its first bytes in place. Nothing is
+ * copied or allocated, so interceptors can call this on every body they see.
+ */
+public final class ContentSniffer {
+  /** The number of leading bytes inspected. */
+  static final int SAMPLE_BYTE_COUNT = 64;
+  /** The number of leading code points inspected. */
+  static final int SAMPLE_CODE_POINT_COUNT = 16;
+
+  private static final int REPLACEMENT_CHARACTER = '\uFFFD';
+  /** The smallest code point that may be encoded in each UTF-8 sequence length. */
+  private static final int[] MIN_CODE_POINTS = {0, 0, 0x80, 0x800, 0x10000};
+
+  private ContentSniffer() {
+  }
+
+  /**
+   * Returns true if the body in question probably contains human readable text. Bodies that start
+   * with a well-known binary signature are rejected immediately; otherwise a small sample of code
+   * points is decoded to detect unicode control characters commonly used in binary formats.
+   * Protocol buffers are usually caught by this scan as their leading tag bytes are control
+   * characters.
+   */
+  public static boolean isPlaintext(Buffer buffer) {
+    if (binarySignature(buffer) != null) {
+      return false;
+    }
+
+    long size = buffer.size();
+    long limit = Math.min(size, SAMPLE_BYTE_COUNT);
+    long i = 0;
+    for (int codePoints = 0; i < limit && codePoints < SAMPLE_CODE_POINT_COUNT; codePoints++) {
+      int b0 = buffer.getByte(i) & 0xff;
+
+      int byteCount;
+      int codePoint;
+      if (b0 < 0x80) {
+        byteCount = 1;
+        codePoint = b0;
+      } else if ((b0 & 0xe0) == 0xc0) {
+        byteCount = 2;
+        codePoint = b0 & 0x1f;
+      } else if ((b0 & 0xf0) == 0xe0) {
+        byteCount = 3;
+        codePoint = b0 & 0x0f;
+      } else if ((b0 & 0xf8) == 0xf0) {
+        byteCount = 4;
+        codePoint = b0 & 0x07;
+      } else {
+        i++; // Unexpected continuation or invalid lead byte; decodes as U+FFFD.
+        continue;
+      }
+
+      if (i + byteCount > size) {
+        return false; // Truncated UTF-8 sequence.
+      }
+      if (i + byteCount > limit) {
+        break; // The sequence straddles the end of the sample; everything before it was text.
+      }
+
+      int j = 1;
+      for (; j < byteCount; j++) {
+        int b = buffer.getByte(i + j) & 0xff;
+        if ((b & 0xc0) != 0x80) {
+          codePoint = REPLACEMENT_CHARACTER;
+          break;
+        }
+        codePoint = (codePoint << 6) | (b & 0x3f);
+      }
+      i += j;
+
+      // Like Okio, decode overlong forms, surrogates and values past U+10FFFF as U+FFFD.
+      if (j == byteCount && (codePoint < MIN_CODE_POINTS[byteCount]
+          || (codePoint >= 0xd800 && codePoint <= 0xdfff) || codePoint > 0x10ffff)) {
+        codePoint = REPLACEMENT_CHARACTER;
+      }
+
+      if (Character.isISOControl(codePoint) && !Character.isWhitespace(codePoint)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the name of the binary format whose magic number starts {@code buffer}, or null if it
+   * doesn't start with a known signature.
+   */
+  public static String binarySignature(Buffer buffer) {
+    long size = buffer.size();
+    if (size < 2) return null;
+
+    int b0 = buffer.getByte(0) & 0xff;
+    int b1 = buffer.getByte(1) & 0xff;
+    if (b0 == 0x1f && b1 == 0x8b) return "gzip";
+    if (size < 4) return null;
+
+    int b2 = buffer.getByte(2) & 0xff;
+    int b3 = buffer.getByte(3) & 0xff;
+    if (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G') return "png";
+    if (b0 == 0xff && b1 == 0xd8 && b2 == 0xff) return "jpeg";
+    if (b0 == 'G' && b1 == 'I' && b2 == 'F' && b3 == '8') return "gif";
+    if (b0 == 'P' && b1 == 'K' && b2 == 0x03 && b3 == 0x04) return "zip";
+    if (b0 == 0x28 && b1 == 0xb5 && b2 == 0x2f && b3 == 0xfd) return "zstd";
+    if (b0 == '%' && b1 == 'P' && b2 == 'D' && b3 == 'F') return "pdf";
+    if (b0 == 0x00 && b1 == 'a' && b2 == 's' && b3 == 'm') return "wasm";
+    if (size >= 12 && b0 == 'R' && b1 == 'I' && b2 == 'F' && b3 == 'F'
+        && buffer.getByte(8) == 'W' && buffer.getByte(9) == 'E'
+        && buffer.getByte(10) == 'B' && buffer.getByte(11) == 'P') {
+      return "webp";
+    }
+    return null;
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.recipes.ProgressDownload.ProgressListener;
+import okio.BufferedSource;
+import okio.ByteString;
+
+/**
+ * Streams a response body to a file instead of into memory, so heap use doesn't depend on the
+ * file's size. Each chunk is copied once out of Okio's buffer, fed to an optional digest, and
+ * written to a temporary file in the target's directory. Once the whole body has arrived, been
+ * verified and been synced to disk, the temporary file is atomically renamed over the target;
+ * readers never observe a partial file.
+ */
+public final class DownloadToFile {
+  /** Bytes moved per read and write. Large enough to amortize the per-call costs of both. */
+  private static final int TRANSFER_SIZE = 64 * 1024;
+
+  private final OkHttpClient client = new OkHttpClient();
+
+  /**
+   * Downloads {@code request} to {@code target}.
+   *
+   * @param digestAlgorithm a {@link MessageDigest} algorithm like "SHA-256", or null to skip
+   *     checksumming.
+   * @param expectedDigest the digest the body must have, or null to accept any body.
+   * @param listener notified of progress, or null.
+   * @return the body's digest, or null if {@code digestAlgorithm} is null.
+   */
+  public ByteString download(Request request, File target, String digestAlgorithm,
+      ByteString expectedDigest, ProgressListener listener) throws IOException {
+    MessageDigest digest = null;
+    if (digestAlgorithm != null) {
+      try {
+        digest = MessageDigest.getInstance(digestAlgorithm);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalArgumentException(e);
+      }
+    } else if (expectedDigest != null) {
+      throw new IllegalArgumentException("expectedDigest requires a digestAlgorithm");
+    }
+
+    File temp = new File(target.getPath() + ".download");
+    boolean success = false;
+    try (Response response = client.newCall(request).execute()) {
+      if (!response.isSuccessful()) throw new IOException("Unexpected code " + response);
+
+      ResponseBody body = response.body();
+      try (FileOutputStream out = new FileOutputStream(temp)) {
+        FileChannel channel = out.getChannel();
+        transfer(body.source(), channel, digest, body.contentLength(), listener);
+        channel.force(true); // Sync before the rename so a crash can't leave a torn target.
+      }
+
+      ByteString actualDigest = digest != null ? ByteString.of(digest.digest()) : null;
+      if (expectedDigest != null && !expectedDigest.equals(actualDigest)) {
+        throw new IOException(digestAlgorithm + " mismatch: expected " + expectedDigest.hex()
+            + " but was " + actualDigest.hex());
+      }
+
+      Files.move(temp.toPath(), target.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      success = true;
+      return actualDigest;
+    } finally {
+      if (!success) temp.delete();
+    }
+  }
+
+  private static void transfer(BufferedSource source, FileChannel channel, MessageDigest digest,
+      long contentLength, ProgressListener listener) throws IOException {
+    byte[] array = new byte[TRANSFER_SIZE];
+    ByteBuffer buffer = ByteBuffer.wrap(array);
+    long total = 0L;
+    for (int read; (read = fill(source, array, array.length)) != -1; ) {
+      if (digest != null) digest.update(array, 0, read);
+      buffer.clear().limit(read);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      total += read;
+      if (listener != null) listener.update(total, contentLength, false);
+    }
+    if (listener != null) listener.update(total, contentLength, true);
+  }
+
+  /**
+   * Reads into {@code array} until it holds {@code byteCount} bytes or {@code source} is exhausted,
+   * and returns the number read, or -1 if the source was already exhausted. A single read returns
+   * at most one 8 KiB Okio segment; filling the array lets callers write in larger transfers.
+   */
+  static int fill(BufferedSource source, byte[] array, int byteCount) throws IOException {
+    int count = 0;
+    while (count < byteCount) {
+      int read = source.read(array, count, byteCount - count);
+      if (read == -1) break;
+      count += read;
+    }
+    return count == 0 && byteCount > 0 ? -1 : count;
+  }
+
+  public static void main(String... args) throws Exception {
+    if (args.length != 2) {
+      System.out.println("Usage: DownloadToFile <url> <file>");
+      return;
+    }
+
+    Request request = new Request.Builder()
+        .url(args[0])
+        .build();
+    ByteString sha256 = new DownloadToFile().download(
+        request, new File(args[1]), "SHA-256", null, null);
+    System.out.println("SHA-256: " + sha256.hex());
+  }
+}
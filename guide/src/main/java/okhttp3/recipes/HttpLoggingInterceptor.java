@@ -15,17 +15,34 @@
  */
 package okhttp3.recipes;
 
+import com.squareup.moshi.JsonWriter;
 import okhttp3.*;
 import okhttp3.internal.http.HttpHeaders;
 import okhttp3.internal.platform.Platform;
 import okio.Buffer;
+import okio.BufferedSink;
 import okio.BufferedSource;
+import okio.ForwardingSink;
+import okio.ForwardingSource;
+import okio.Okio;
 
-import java.io.EOFException;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static okhttp3.internal.platform.Platform.INFO;
 
@@ -38,6 +55,16 @@ import static okhttp3.internal.platform.Platform.INFO;
  */
 public final class HttpLoggingInterceptor implements Interceptor {
   private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final long DEFAULT_MAX_LOGGED_BODY_BYTES = 64 * 1024;
+  private static final String REDACTED = "\u2588\u2588";
+  private static final Set<String> DEFAULT_HEADERS_TO_REDACT = headerSet(Arrays.asList(
+      "Authorization", "Proxy-Authorization", "Cookie", "Set-Cookie"));
+  private static final int MAX_RETAINED_HEADER_CHARS = 8 * 1024;
+  private static final ThreadLocal<StringBuilder> HEADER_LINES = new ThreadLocal<StringBuilder>() {
+    @Override protected StringBuilder initialValue() {
+      return new StringBuilder(512);
+    }
+  };
 
   public enum Level {
     /** No logs. */
@@ -95,6 +122,24 @@ public final class HttpLoggingInterceptor implements Interceptor {
     BODY
   }
 
+  public enum Format {
+    /** Human readable output, one log call per line. */
+    TEXT,
+    /**
+     * One JSON object per exchange, logged in a single call once the exchange completes. Headers
+     * are included at {@link Level#HEADERS} and above, and body prefixes at {@link Level#BODY}.
+     *
+     * <p>Example:
+     * <pre>{@code
+     * {"method":"POST","url":"http://example.com/greeting","protocol":"http/1.1",
+     *  "requestHeaders":{"Content-Type":"plain/text","Content-Length":"3"},"requestBodyBytes":3,
+     *  "code":200,"message":"OK","tookMs":22,"responseHeaders":{"Content-Type":"plain/text"},
+     *  "responseBodyBytes":6}
+     * }</pre>
+     */
+    JSON
+  }
+
   public interface Logger {
     void log(String message);
 
@@ -117,6 +162,10 @@ public final class HttpLoggingInterceptor implements Interceptor {
   private final Logger logger;
 
   private volatile Level level = Level.NONE;
+  private volatile long maxLoggedBodyBytes = DEFAULT_MAX_LOGGED_BODY_BYTES;
+  private volatile Format format = Format.TEXT;
+  private volatile CompiledRules rules;
+  private volatile Set<String> headersToRedact = DEFAULT_HEADERS_TO_REDACT;
 
   /** Change the level at which this interceptor logs. */
   public HttpLoggingInterceptor setLevel(Level level) {
@@ -129,73 +178,274 @@ public final class HttpLoggingInterceptor implements Interceptor {
     return level;
   }
 
-  @Override public Response intercept(Chain chain) throws IOException {
-    Level level = this.level;
+  /**
+   * Limit the number of body bytes retained for logging at {@link Level#BODY}. Bodies are streamed
+   * through to their destination untouched; only the first {@code maxLoggedBodyBytes} are copied
+   * aside and logged once the body completes.
+   */
+  public HttpLoggingInterceptor setMaxLoggedBodyBytes(long maxLoggedBodyBytes) {
+    if (maxLoggedBodyBytes < 0) throw new IllegalArgumentException("maxLoggedBodyBytes < 0");
+    this.maxLoggedBodyBytes = maxLoggedBodyBytes;
+    return this;
+  }
 
-    Request request = chain.request();
-    if (level == Level.NONE) {
-      return chain.proceed(request);
-    }
+  public long getMaxLoggedBodyBytes() {
+    return maxLoggedBodyBytes;
+  }
 
-    boolean logBody = level == Level.BODY;
-    boolean logHeaders = logBody || level == Level.HEADERS;
+  /** Change the format of the logs created by this interceptor. */
+  public HttpLoggingInterceptor setFormat(Format format) {
+    if (format == null) throw new NullPointerException("format == null");
+    this.format = format;
+    return this;
+  }
 
-    RequestBody requestBody = request.body();
-    boolean hasRequestBody = requestBody != null;
+  public Format getFormat() {
+    return format;
+  }
 
-    Connection connection = chain.connection();
-    Protocol protocol = connection != null ? connection.protocol() : Protocol.HTTP_1_1;
-    String requestStartMessage = "--> " + request.method() + ' ' + request.url() + ' ' + protocol;
-    if (!logHeaders && hasRequestBody) {
-      requestStartMessage += " (" + requestBody.contentLength() + "-byte body)";
+  /**
+   * Mask the value of the header {@code name} in logs. Authorization, Proxy-Authorization, Cookie
+   * and Set-Cookie are redacted by default.
+   */
+  public HttpLoggingInterceptor redactHeader(String name) {
+    if (name == null) throw new NullPointerException("name == null");
+    List<String> names = new ArrayList<>(headersToRedact);
+    names.add(name);
+    this.headersToRedact = headerSet(names);
+    return this;
+  }
+
+  /** Replace the set of headers whose values are masked in logs. Names are case insensitive. */
+  public HttpLoggingInterceptor setHeadersToRedact(Collection<String> names) {
+    if (names == null) throw new NullPointerException("names == null");
+    this.headersToRedact = headerSet(names);
+    return this;
+  }
+
+  public Set<String> getHeadersToRedact() {
+    return headersToRedact;
+  }
+
+  private static Set<String> headerSet(Collection<String> names) {
+    Set<String> result = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    result.addAll(names);
+    return Collections.unmodifiableSet(result);
+  }
+
+  /**
+   * Select the level per call using {@code rules}. Each call is logged at the highest level among
+   * {@link #getLevel() the default level} and every rule that matches it. Pass an empty list to
+   * log every call at the default level.
+   */
+  public HttpLoggingInterceptor setRules(List<Rule> rules) {
+    if (rules == null) throw new NullPointerException("rules == null");
+    this.rules = rules.isEmpty() ? null : new CompiledRules(rules);
+    return this;
+  }
+
+  /**
+   * Raises the logging level of calls that match a host, path prefix or response status class.
+   * Matching calls may be sampled, either by probability or by a maximum rate.
+   *
+   * <p>For example, to log 1% of calls with their headers and every server error with its body:
+   * <pre>{@code
+   * interceptor.setRules(Arrays.asList(
+   *     new Rule.Builder().level(Level.HEADERS).sampleRate(0.01).build(),
+   *     new Rule.Builder().statusClass(5).level(Level.BODY).build()));
+   * }</pre>
+   *
+   * <p>Rules with a status class only apply to the response half of the exchange, as the request
+   * has already been sent by the time the status is known.
+   */
+  public static final class Rule {
+    final String host;
+    final String pathPrefix;
+    final int statusClass;
+    final Level level;
+    final double sampleRate;
+    final long permitIntervalNanos;
+    final AtomicLong nextPermitNanos = new AtomicLong(Long.MIN_VALUE);
+
+    Rule(Builder builder) {
+      this.host = builder.host;
+      this.pathPrefix = builder.pathPrefix;
+      this.statusClass = builder.statusClass;
+      this.level = builder.level;
+      this.sampleRate = builder.sampleRate;
+      this.permitIntervalNanos = builder.maxPerSecond > 0
+          ? (long) (TimeUnit.SECONDS.toNanos(1) / builder.maxPerSecond)
+          : 0L;
     }
-    logger.log(requestStartMessage);
 
-    if (logHeaders) {
-      if (hasRequestBody) {
-        // Request body headers are only present when installed as a network interceptor. Force
-        // them to be included (when available) so there values are known.
-        if (requestBody.contentType() != null) {
-          logger.log("Content-Type: " + requestBody.contentType());
-        }
-        if (requestBody.contentLength() != -1) {
-          logger.log("Content-Length: " + requestBody.contentLength());
-        }
+    boolean matches(HttpUrl url) {
+      return pathPrefix == null || url.encodedPath().startsWith(pathPrefix);
+    }
+
+    /** Returns true if this call is sampled. Rate limiting is lock-free: one CAS per permit. */
+    boolean sample() {
+      if (sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+        return false;
+      }
+      if (permitIntervalNanos == 0L) {
+        return true;
+      }
+      long now = System.nanoTime();
+      long next = nextPermitNanos.get();
+      if (next != Long.MIN_VALUE && now - next < 0) {
+        return false;
+      }
+      return nextPermitNanos.compareAndSet(next, now + permitIntervalNanos);
+    }
+
+    public static final class Builder {
+      String host;
+      String pathPrefix;
+      int statusClass;
+      Level level;
+      double sampleRate = 1.0;
+      double maxPerSecond;
+
+      /** Only match calls to {@code host}. */
+      public Builder host(String host) {
+        if (host == null) throw new NullPointerException("host == null");
+        this.host = host.toLowerCase(Locale.US);
+        return this;
       }
 
-      Headers headers = request.headers();
-      for (int i = 0, count = headers.size(); i < count; i++) {
-        String name = headers.name(i);
-        // Skip headers from the request body as they are explicitly logged above.
-        if (!"Content-Type".equalsIgnoreCase(name) && !"Content-Length".equalsIgnoreCase(name)) {
-          logger.log(name + ": " + headers.value(i));
+      /** Only match calls whose encoded path starts with {@code pathPrefix}. */
+      public Builder pathPrefix(String pathPrefix) {
+        if (pathPrefix == null) throw new NullPointerException("pathPrefix == null");
+        this.pathPrefix = pathPrefix;
+        return this;
+      }
+
+      /** Only match responses whose code is in this class, like 5 for server errors. */
+      public Builder statusClass(int statusClass) {
+        if (statusClass < 1 || statusClass > 5) {
+          throw new IllegalArgumentException("statusClass < 1 || statusClass > 5: " + statusClass);
         }
+        this.statusClass = statusClass;
+        return this;
       }
 
-      if (!logBody || !hasRequestBody) {
-        logger.log("--> END " + request.method());
-      } else if (bodyEncoded(request.headers())) {
-        logger.log("--> END " + request.method() + " (encoded body omitted)");
-      } else {
-        Buffer buffer = new Buffer();
-        requestBody.writeTo(buffer);
+      public Builder level(Level level) {
+        if (level == null) throw new NullPointerException("level == null");
+        this.level = level;
+        return this;
+      }
 
-        Charset charset = UTF8;
-        MediaType contentType = requestBody.contentType();
-        if (contentType != null) {
-          charset = contentType.charset(UTF8);
+      /** Only match this fraction of otherwise matching calls. */
+      public Builder sampleRate(double sampleRate) {
+        if (sampleRate < 0.0 || sampleRate > 1.0) {
+          throw new IllegalArgumentException("sampleRate < 0.0 || sampleRate > 1.0: " + sampleRate);
         }
+        this.sampleRate = sampleRate;
+        return this;
+      }
+
+      /** Match at most this many calls per second. Zero means unlimited. */
+      public Builder maxPerSecond(double maxPerSecond) {
+        if (maxPerSecond < 0.0) throw new IllegalArgumentException("maxPerSecond < 0.0");
+        this.maxPerSecond = maxPerSecond;
+        return this;
+      }
+
+      public Rule build() {
+        if (level == null) throw new IllegalStateException("level == null");
+        return new Rule(this);
+      }
+    }
+  }
+
+  /**
+   * Rules indexed by host so evaluating them is a map lookup plus a scan of the few rules that
+   * could possibly apply. Immutable; replaced wholesale by {@link #setRules}.
+   */
+  static final class CompiledRules {
+    private static final Rule[] EMPTY = new Rule[0];
+
+    final Rule[] anyHostRequestRules;
+    final Map<String, Rule[]> requestRulesByHost;
+    final Rule[] anyHostStatusRules;
+    final Map<String, Rule[]> statusRulesByHost;
+    final boolean hasStatusRules;
 
-        logger.log("");
-        if (isPlaintext(buffer)) {
-          logger.log(buffer.readString(charset));
-          logger.log("--> END " + request.method()
-              + " (" + requestBody.contentLength() + "-byte body)");
+    CompiledRules(List<Rule> rules) {
+      List<Rule> anyHostRequest = new ArrayList<>();
+      List<Rule> anyHostStatus = new ArrayList<>();
+      Map<String, List<Rule>> requestByHost = new LinkedHashMap<>();
+      Map<String, List<Rule>> statusByHost = new LinkedHashMap<>();
+      for (Rule rule : rules) {
+        if (rule.host == null) {
+          (rule.statusClass == 0 ? anyHostRequest : anyHostStatus).add(rule);
         } else {
-          logger.log("--> END " + request.method() + " (binary "
-              + requestBody.contentLength() + "-byte body omitted)");
+          Map<String, List<Rule>> byHost = rule.statusClass == 0 ? requestByHost : statusByHost;
+          List<Rule> hostRules = byHost.get(rule.host);
+          if (hostRules == null) {
+            hostRules = new ArrayList<>();
+            byHost.put(rule.host, hostRules);
+          }
+          hostRules.add(rule);
         }
       }
+      this.anyHostRequestRules = anyHostRequest.toArray(EMPTY);
+      this.anyHostStatusRules = anyHostStatus.toArray(EMPTY);
+      this.requestRulesByHost = toArrays(requestByHost);
+      this.statusRulesByHost = toArrays(statusByHost);
+      this.hasStatusRules = !anyHostStatus.isEmpty() || !statusByHost.isEmpty();
+    }
+
+    private static Map<String, Rule[]> toArrays(Map<String, List<Rule>> map) {
+      Map<String, Rule[]> result = new HashMap<>();
+      for (Map.Entry<String, List<Rule>> entry : map.entrySet()) {
+        result.put(entry.getKey(), entry.getValue().toArray(EMPTY));
+      }
+      return result;
+    }
+
+    Level requestLevel(HttpUrl url, Level level) {
+      level = apply(anyHostRequestRules, url, 0, level);
+      return apply(requestRulesByHost.get(url.host()), url, 0, level);
+    }
+
+    Level responseLevel(HttpUrl url, int code, Level level) {
+      if (!hasStatusRules) return level;
+      int statusClass = code / 100;
+      level = apply(anyHostStatusRules, url, statusClass, level);
+      return apply(statusRulesByHost.get(url.host()), url, statusClass, level);
+    }
+
+    private static Level apply(Rule[] rules, HttpUrl url, int statusClass, Level level) {
+      if (rules == null) return level;
+      for (Rule rule : rules) {
+        // Cheap checks first so sampling permits are only spent on calls that would match.
+        if (rule.level.compareTo(level) <= 0) continue;
+        if (rule.statusClass != statusClass) continue;
+        if (!rule.matches(url) || !rule.sample()) continue;
+        level = rule.level;
+      }
+      return level;
+    }
+  }
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Level level = this.level;
+    CompiledRules rules = this.rules;
+
+    Request request = chain.request();
+    if (rules != null) {
+      level = rules.requestLevel(request.url(), level);
+    }
+    if (level == Level.NONE && (rules == null || !rules.hasStatusRules)) {
+      return chain.proceed(request);
+    }
+    if (format == Format.JSON) {
+      return interceptJson(chain, level, rules);
+    }
+
+    if (level != Level.NONE) {
+      request = logRequest(chain, request, level);
     }
 
     long startNs = System.nanoTime();
@@ -203,11 +453,26 @@ public final class HttpLoggingInterceptor implements Interceptor {
     try {
       response = chain.proceed(request);
     } catch (Exception e) {
-      logger.log("<-- HTTP FAILED: " + e);
+      if (level != Level.NONE) {
+        logUnfinishedRequestBody(request);
+        logger.log("<-- HTTP FAILED: " + e);
+      }
       throw e;
     }
+    if (level != Level.NONE) logUnfinishedRequestBody(request);
     long tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
 
+    // A status rule may raise the level for the response half only; the request is already gone.
+    if (rules != null) {
+      level = rules.responseLevel(request.url(), response.code(), level);
+    }
+    if (level == Level.NONE) {
+      return response;
+    }
+
+    boolean logBody = level == Level.BODY;
+    boolean logHeaders = logBody || level == Level.HEADERS;
+
     ResponseBody responseBody = response.body();
     long contentLength = responseBody.contentLength();
     String bodySize = contentLength != -1 ? contentLength + "-byte" : "unknown-length";
@@ -216,20 +481,13 @@ public final class HttpLoggingInterceptor implements Interceptor {
         + bodySize + " body" : "") + ')');
 
     if (logHeaders) {
-      Headers headers = response.headers();
-      for (int i = 0, count = headers.size(); i < count; i++) {
-        logger.log(headers.name(i) + ": " + headers.value(i));
-      }
+      logHeaderLines(response.headers(), null, false);
 
       if (!logBody || !HttpHeaders.hasBody(response)) {
         logger.log("<-- END HTTP");
       } else if (bodyEncoded(response.headers())) {
         logger.log("<-- END HTTP (encoded body omitted)");
       } else {
-        BufferedSource source = responseBody.source();
-        source.request(Long.MAX_VALUE); // Buffer the entire body.
-        Buffer buffer = source.buffer();
-
         Charset charset = UTF8;
         MediaType contentType = responseBody.contentType();
         if (contentType != null) {
@@ -244,46 +502,543 @@ public final class HttpLoggingInterceptor implements Interceptor {
           }
         }
 
-        if (!isPlaintext(buffer)) {
-          logger.log("");
-          logger.log("<-- END HTTP (binary " + buffer.size() + "-byte body omitted)");
-          return response;
-        }
+        // Log the body as the caller consumes it rather than buffering all of it up front.
+        return response.newBuilder()
+            .body(new LoggingResponseBody(
+                responseBody, charset, maxLoggedBodyBytes, new BodyCallback() {
+                  @Override public void onBody(BodyCapture capture) {
+                    logBody("<-- END HTTP", capture);
+                  }
+                }))
+            .build();
+      }
+    }
+
+    return response;
+  }
+
+  /**
+   * Logs the request line and, depending on {@code level}, its headers. Returns the request to
+   * proceed with, which wraps the original body when it will be logged.
+   */
+  private Request logRequest(Chain chain, Request request, Level level) throws IOException {
+    boolean logBody = level == Level.BODY;
+    boolean logHeaders = logBody || level == Level.HEADERS;
+
+    RequestBody requestBody = request.body();
+    boolean hasRequestBody = requestBody != null;
+
+    Connection connection = chain.connection();
+    Protocol protocol = connection != null ? connection.protocol() : Protocol.HTTP_1_1;
+    String requestStartMessage = "--> " + request.method() + ' ' + request.url() + ' ' + protocol;
+    if (!logHeaders && hasRequestBody) {
+      requestStartMessage += " (" + requestBody.contentLength() + "-byte body)";
+    }
+    logger.log(requestStartMessage);
+
+    if (logHeaders) {
+      logHeaderLines(request.headers(), requestBody, true);
 
-        if (contentLength != 0) {
-          logger.log("");
-          logger.log(buffer.clone().readString(charset));
+      if (!logBody || !hasRequestBody) {
+        logger.log("--> END " + request.method());
+      } else if (bodyEncoded(request.headers())) {
+        logger.log("--> END " + request.method() + " (encoded body omitted)");
+      } else {
+        Charset charset = UTF8;
+        MediaType contentType = requestBody.contentType();
+        if (contentType != null) {
+          charset = contentType.charset(UTF8);
         }
 
-        logger.log("<-- END HTTP (" + buffer.size() + "-byte body)");
+        // Log the body as it streams to the server rather than serializing it an extra time.
+        final String endMessage = "--> END " + request.method();
+        request = request.newBuilder()
+            .method(request.method(), new LoggingRequestBody(
+                requestBody, charset, maxLoggedBodyBytes, new BodyCallback() {
+                  @Override public void onBody(BodyCapture capture) {
+                    logBody(endMessage, capture);
+                  }
+                }))
+            .build();
       }
     }
 
-    return response;
+    return request;
   }
 
   /**
-   * Returns true if the body in question probably contains human readable text. Uses a small sample
-   * of code points to detect unicode control characters commonly used in binary file signatures.
+   * Logs the request's end line if its body was never completely written, as when the call fails
+   * before connecting. Otherwise the line was logged when the body finished streaming.
    */
-  static boolean isPlaintext(Buffer buffer) {
+  private void logUnfinishedRequestBody(Request request) {
+    RequestBody body = request.body();
+    if (!(body instanceof LoggingRequestBody)) return;
+    LoggingRequestBody loggingBody = (LoggingRequestBody) body;
+    if (loggingBody.finished()) return;
+    long bytesWritten = loggingBody.bytesWritten();
+    logger.log("--> END " + request.method() + (bytesWritten == -1L
+        ? " (body not sent)"
+        : " (body incomplete after " + bytesWritten + " bytes)"));
+  }
+
+  /**
+   * Logs {@code headers} with a single call. Lines are rendered into a builder that is reused by
+   * the calling thread, so the only allocation per call is the final string.
+   *
+   * @param requestBody if non-null, its Content-Type and Content-Length are logged first. Request
+   *     body headers are only present when installed as a network interceptor; this forces them
+   *     to be included (when available) so their values are known.
+   * @param skipBodyHeaders true to skip Content-Type and Content-Length in {@code headers}.
+   */
+  private void logHeaderLines(Headers headers, RequestBody requestBody, boolean skipBodyHeaders)
+      throws IOException {
+    StringBuilder out = HEADER_LINES.get();
+    out.setLength(0);
+
+    if (requestBody != null) {
+      MediaType contentType = requestBody.contentType();
+      if (contentType != null) {
+        out.append("Content-Type: ").append(contentType);
+      }
+      long contentLength = requestBody.contentLength();
+      if (contentLength != -1) {
+        if (out.length() > 0) out.append('\n');
+        out.append("Content-Length: ").append(contentLength);
+      }
+    }
+
+    Set<String> headersToRedact = this.headersToRedact;
+    for (int i = 0, count = headers.size(); i < count; i++) {
+      String name = headers.name(i);
+      if (skipBodyHeaders && isBodyHeader(name)) continue;
+      if (out.length() > 0) out.append('\n');
+      out.append(name).append(": ")
+          .append(headersToRedact.contains(name) ? REDACTED : headers.value(i));
+    }
+
+    if (out.length() > 0) {
+      logger.log(out.toString());
+    }
+    if (out.capacity() > MAX_RETAINED_HEADER_CHARS) {
+      HEADER_LINES.remove(); // Don't pin an unusually large builder to this thread.
+    }
+  }
+
+  /** Returns true for Content-Type and Content-Length, checking the length before any chars. */
+  static boolean isBodyHeader(String name) {
+    switch (name.length()) {
+      case 12:
+        return name.regionMatches(true, 0, "Content-Type", 0, 12);
+      case 14:
+        return name.regionMatches(true, 0, "Content-Length", 0, 14);
+      default:
+        return false;
+    }
+  }
+
+  private Response interceptJson(Chain chain, Level level, CompiledRules rules)
+      throws IOException {
+    boolean logBody = level == Level.BODY;
+    boolean logHeaders = logBody || level == Level.HEADERS;
+
+    Request request = chain.request();
+    RequestBody requestBody = request.body();
+    Connection connection = chain.connection();
+    Protocol protocol = connection != null ? connection.protocol() : Protocol.HTTP_1_1;
+
+    final ExchangeRecord record = new ExchangeRecord(
+        request, protocol, logHeaders, headersToRedact);
+    if (logBody && requestBody != null && !bodyEncoded(request.headers())) {
+      MediaType contentType = requestBody.contentType();
+      Charset charset = contentType != null ? contentType.charset(UTF8) : UTF8;
+      request = request.newBuilder()
+          .method(request.method(), new LoggingRequestBody(
+              requestBody, charset, maxLoggedBodyBytes, new BodyCallback() {
+                @Override public void onBody(BodyCapture capture) {
+                  record.requestBody = capture;
+                }
+              }))
+          .build();
+    }
+
+    long startNs = System.nanoTime();
+    Response response;
     try {
-      Buffer prefix = new Buffer();
-      long byteCount = buffer.size() < 64 ? buffer.size() : 64;
-      buffer.copyTo(prefix, 0, byteCount);
-      for (int i = 0; i < 16; i++) {
-        if (prefix.exhausted()) {
-          break;
+      response = chain.proceed(request);
+    } catch (Exception e) {
+      if (level != Level.NONE) {
+        record.tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+        record.error = e.toString();
+        logger.log(record.toJson());
+      }
+      throw e;
+    }
+    record.tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+
+    if (rules != null) {
+      level = rules.responseLevel(request.url(), response.code(), level);
+    }
+    if (level == Level.NONE) {
+      return response;
+    }
+    logBody = level == Level.BODY;
+    logHeaders = logBody || level == Level.HEADERS;
+    record.response(response, logHeaders);
+
+    ResponseBody responseBody = response.body();
+    if (logBody && HttpHeaders.hasBody(response) && !bodyEncoded(response.headers())) {
+      MediaType contentType = responseBody.contentType();
+      Charset charset = UTF8;
+      try {
+        if (contentType != null) charset = contentType.charset(UTF8);
+      } catch (UnsupportedCharsetException e) {
+        charset = null;
+      }
+      if (charset != null) {
+        // Defer the record until the body has streamed so its size and prefix are known.
+        return response.newBuilder()
+            .body(new LoggingResponseBody(
+                responseBody, charset, maxLoggedBodyBytes, new BodyCallback() {
+                  @Override public void onBody(BodyCapture capture) {
+                    record.responseBody = capture;
+                    logger.log(record.toJson());
+                  }
+                }))
+            .build();
+      }
+    }
+
+    logger.log(record.toJson());
+    return response;
+  }
+
+  /** Everything known about one exchange, collected so it can be logged as a single record. */
+  static final class ExchangeRecord {
+    final String method;
+    final HttpUrl url;
+    final Protocol protocol;
+    final Set<String> headersToRedact;
+    final Headers requestHeaders;
+    final MediaType requestContentType;
+    final long requestContentLength;
+    BodyCapture requestBody;
+    long tookMs;
+    String error;
+    int code;
+    String message;
+    Headers responseHeaders;
+    long responseContentLength = -1;
+    BodyCapture responseBody;
+
+    ExchangeRecord(Request request, Protocol protocol, boolean logHeaders,
+        Set<String> headersToRedact) throws IOException {
+      RequestBody body = request.body();
+      this.method = request.method();
+      this.url = request.url();
+      this.protocol = protocol;
+      this.headersToRedact = headersToRedact;
+      this.requestHeaders = logHeaders ? request.headers() : null;
+      this.requestContentType = body != null ? body.contentType() : null;
+      this.requestContentLength = body != null ? body.contentLength() : -1;
+    }
+
+    void response(Response response, boolean logHeaders) {
+      this.code = response.code();
+      this.message = response.message();
+      this.responseHeaders = logHeaders ? response.headers() : null;
+      this.responseContentLength = response.body().contentLength();
+    }
+
+    /**
+     * Serializes this record with a JSON writer over an Okio buffer; no intermediate strings are
+     * created for header lines.
+     */
+    String toJson() {
+      Buffer buffer = new Buffer();
+      JsonWriter writer = JsonWriter.of(buffer);
+      try {
+        writer.beginObject();
+        writer.name("method").value(method);
+        writer.name("url").value(url.toString());
+        writer.name("protocol").value(protocol.toString());
+        if (requestHeaders != null) {
+          writer.name("requestHeaders");
+          writer.beginObject();
+          // Request body headers are only present when installed as a network interceptor.
+          if (requestContentType != null) {
+            writer.name("Content-Type").value(requestContentType.toString());
+          }
+          if (requestContentLength != -1) {
+            writer.name("Content-Length").value(Long.toString(requestContentLength));
+          }
+          writeHeaders(writer, requestHeaders, requestContentType != null
+              || requestContentLength != -1);
+          writer.endObject();
         }
-        int codePoint = prefix.readUtf8CodePoint();
-        if (Character.isISOControl(codePoint) && !Character.isWhitespace(codePoint)) {
-          return false;
+        if (requestBody != null) {
+          writeBody(writer, "requestBody", requestBody);
+        } else if (requestContentLength != -1) {
+          writer.name("requestBodyBytes").value(requestContentLength);
         }
+        writer.name("tookMs").value(tookMs);
+        if (error != null) {
+          writer.name("error").value(error);
+        } else {
+          writer.name("code").value(code);
+          writer.name("message").value(message);
+          if (responseHeaders != null) {
+            writer.name("responseHeaders");
+            writer.beginObject();
+            writeHeaders(writer, responseHeaders, false);
+            writer.endObject();
+          }
+          if (responseBody != null) {
+            writeBody(writer, "responseBody", responseBody);
+          } else if (responseContentLength != -1) {
+            writer.name("responseBodyBytes").value(responseContentLength);
+          }
+        }
+        writer.endObject();
+        writer.close();
+      } catch (IOException e) {
+        throw new AssertionError(e); // Writing to a Buffer cannot fail.
       }
-      return true;
-    } catch (EOFException e) {
-      return false; // Truncated UTF-8 sequence.
+      return buffer.readUtf8();
     }
+
+    private void writeHeaders(JsonWriter writer, Headers headers, boolean skipBodyHeaders)
+        throws IOException {
+      for (String name : headers.names()) {
+        if (skipBodyHeaders && isBodyHeader(name)) continue;
+        List<String> values = headers.values(name);
+        writer.name(name);
+        if (headersToRedact.contains(name)) {
+          writer.value(REDACTED);
+        } else if (values.size() == 1) {
+          writer.value(values.get(0));
+        } else {
+          writer.beginArray();
+          for (String value : values) {
+            writer.value(value);
+          }
+          writer.endArray();
+        }
+      }
+    }
+
+    private static void writeBody(JsonWriter writer, String name, BodyCapture capture)
+        throws IOException {
+      String text = capture.text();
+      if (text != null) {
+        writer.name(name).value(text);
+        if (capture.truncated()) writer.name(name + "Truncated").value(true);
+      }
+      if (!capture.complete) writer.name(name + "Complete").value(false);
+      writer.name(name + "Bytes").value(capture.byteCount);
+    }
+  }
+
+  /**
+   * Logs the captured body prefix followed by {@code endMessage}. Called once the body has been
+   * fully streamed or closed, so the total byte count is exact even when only a prefix was
+   * retained.
+   */
+  private void logBody(String endMessage, BodyCapture capture) {
+    Buffer prefix = capture.prefix;
+    if (!isPlaintext(prefix)) {
+      logger.log("");
+      logger.log(endMessage + " (binary " + capture.byteCount + "-byte body omitted)");
+      return;
+    }
+
+    boolean truncated = capture.truncated();
+    if (prefix.size() != 0) {
+      logger.log("");
+      logger.log(prefix.readString(capture.charset));
+    }
+
+    String size = capture.complete
+        ? capture.byteCount + "-byte body"
+        : "closed early after " + capture.byteCount + " bytes read";
+    logger.log(endMessage + " (" + size
+        + (truncated ? ", first " + capture.limit + " bytes logged" : "") + ')');
+  }
+
+  /** Retains the first {@code limit} bytes that pass through it and counts the rest. */
+  static final class BodyCapture {
+    final Buffer prefix = new Buffer();
+    final Charset charset;
+    final long limit;
+    long byteCount;
+    /** False if the body was closed before it was exhausted. */
+    boolean complete = true;
+
+    BodyCapture(Charset charset, long limit) {
+      this.charset = charset;
+      this.limit = limit;
+    }
+
+    /** Returns the retained prefix as text, or null if it looks like binary data. */
+    String text() {
+      return isPlaintext(prefix) ? prefix.clone().readString(charset) : null;
+    }
+
+    boolean truncated() {
+      return prefix.size() < byteCount;
+    }
+
+    void capture(Buffer source, long offset, long count) {
+      byteCount += count;
+      long remaining = limit - prefix.size();
+      if (remaining > 0) {
+        source.copyTo(prefix, offset, Math.min(count, remaining));
+      }
+    }
+
+    /**
+     * Marks the body as closed before it was exhausted, with {@code unread} bytes buffered but
+     * never consumed by the caller. Those bytes are dropped from the count and the prefix.
+     */
+    void closedEarly(long unread) {
+      complete = false;
+      byteCount -= unread;
+      if (prefix.size() > byteCount) {
+        Buffer consumed = new Buffer();
+        prefix.read(consumed, byteCount);
+        prefix.clear();
+        prefix.write(consumed, consumed.size());
+      }
+    }
+  }
+
+  /** Receives a body's captured prefix once the body has been fully streamed. */
+  interface BodyCallback {
+    void onBody(BodyCapture capture);
+  }
+
+  static final class LoggingRequestBody extends RequestBody {
+    private final RequestBody delegate;
+    private final Charset charset;
+    private final long limit;
+    private final BodyCallback callback;
+    private volatile BodyCapture capture;
+    private volatile boolean finished;
+
+    LoggingRequestBody(RequestBody delegate, Charset charset, long limit, BodyCallback callback) {
+      this.delegate = delegate;
+      this.charset = charset;
+      this.limit = limit;
+      this.callback = callback;
+    }
+
+    @Override public MediaType contentType() {
+      return delegate.contentType();
+    }
+
+    @Override public long contentLength() throws IOException {
+      return delegate.contentLength();
+    }
+
+    @Override public void writeTo(BufferedSink sink) throws IOException {
+      // A retry or a redirect writes the body again; it has already been logged.
+      if (finished) {
+        delegate.writeTo(sink);
+        return;
+      }
+
+      final BodyCapture capture = new BodyCapture(charset, limit);
+      this.capture = capture;
+      BufferedSink teeSink = Okio.buffer(new ForwardingSink(sink) {
+        @Override public void write(Buffer source, long byteCount) throws IOException {
+          capture.capture(source, 0, byteCount);
+          super.write(source, byteCount);
+        }
+      });
+      delegate.writeTo(teeSink);
+      teeSink.emit();
+      finished = true;
+      callback.onBody(capture);
+    }
+
+    /** True once the body has been completely written and logged. */
+    boolean finished() {
+      return finished;
+    }
+
+    /** Returns the bytes written so far, or -1 if writing hasn't started. */
+    long bytesWritten() {
+      BodyCapture capture = this.capture;
+      return capture != null ? capture.byteCount : -1L;
+    }
+  }
+
+  static final class LoggingResponseBody extends ResponseBody {
+    private final ResponseBody delegate;
+    private final Charset charset;
+    private final long limit;
+    private final BodyCallback callback;
+    private BufferedSource bufferedSource;
+
+    LoggingResponseBody(ResponseBody delegate, Charset charset, long limit, BodyCallback callback) {
+      this.delegate = delegate;
+      this.charset = charset;
+      this.limit = limit;
+      this.callback = callback;
+    }
+
+    @Override public MediaType contentType() {
+      return delegate.contentType();
+    }
+
+    @Override public long contentLength() {
+      return delegate.contentLength();
+    }
+
+    @Override public BufferedSource source() {
+      if (bufferedSource == null) {
+        bufferedSource = Okio.buffer(new ForwardingSource(delegate.source()) {
+          final BodyCapture capture = new BodyCapture(charset, limit);
+          boolean exhausted;
+          boolean logged;
+
+          @Override public long read(Buffer sink, long byteCount) throws IOException {
+            long bytesRead = super.read(sink, byteCount);
+            if (bytesRead == -1) {
+              exhausted = true;
+              finish();
+            } else {
+              capture.capture(sink, sink.size() - bytesRead, bytesRead);
+            }
+            return bytesRead;
+          }
+
+          @Override public void close() throws IOException {
+            if (!logged && !exhausted) {
+              // Only count what the caller consumed, not what was buffered ahead of it.
+              capture.closedEarly(bufferedSource.buffer().size());
+            }
+            finish();
+            super.close();
+          }
+
+          private void finish() {
+            if (logged) return;
+            logged = true;
+            callback.onBody(capture);
+          }
+        });
+      }
+      return bufferedSource;
+    }
+  }
+
+  /**
+   * Returns true if the body in question probably contains human readable text.
+   *
+   * @see ContentSniffer#isPlaintext
+   */
+  static boolean isPlaintext(Buffer buffer) {
+    return ContentSniffer.isPlaintext(buffer);
   }
 
   private boolean bodyEncoded(Headers headers) {
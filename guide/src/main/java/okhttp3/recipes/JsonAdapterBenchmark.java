@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.Moshi;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import okhttp3.recipes.ParseResponseWithMoshi.Gist;
+import okhttp3.recipes.ParseResponseWithMoshi.GistFile;
+import okhttp3.recipes.ParseResponseWithMoshi.GistFileJsonAdapter;
+import okhttp3.recipes.ParseResponseWithMoshi.GistJsonAdapter;
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * Compares Moshi's reflective adapter for {@link Gist} with the hand-written one in {@link
+ * ParseResponseWithMoshi}, on first-call latency, decode throughput and bytes allocated per
+ * decode. This is a rough harness, not a substitute for a JMH run: run each mode in its own JVM
+ * for a fair first-call number.
+ */
+public final class JsonAdapterBenchmark {
+  private static final int WARMUP_ITERATIONS = 20000;
+  private static final int MEASURED_ITERATIONS = 50000;
+  private static final int ROUNDS = 5;
+
+  interface AdapterFactory {
+    JsonAdapter<Gist> create();
+  }
+
+  static final AdapterFactory REFLECTIVE = new AdapterFactory() {
+    @Override public JsonAdapter<Gist> create() {
+      return new Moshi.Builder().build().adapter(Gist.class);
+    }
+
+    @Override public String toString() {
+      return "reflective";
+    }
+  };
+
+  static final AdapterFactory HAND_WRITTEN = new AdapterFactory() {
+    @Override public JsonAdapter<Gist> create() {
+      return new Moshi.Builder()
+          .add(Gist.class, new GistJsonAdapter(new GistFileJsonAdapter()).nullSafe())
+          .add(GistFile.class, new GistFileJsonAdapter().nullSafe())
+          .build()
+          .adapter(Gist.class);
+    }
+
+    @Override public String toString() {
+      return "hand-written";
+    }
+  };
+
+  /** Returns a gist with {@code fileCount} small files, like the one the recipe fetches. */
+  static ByteString gistJson(int fileCount) {
+    Buffer buffer = new Buffer();
+    buffer.writeUtf8("{\"url\":\"https://api.github.com/gists/c2a7c39532239ff261be\",\"files\":{");
+    for (int i = 0; i < fileCount; i++) {
+      if (i > 0) buffer.writeUtf8(",");
+      buffer.writeUtf8("\"File").writeDecimalLong(i).writeUtf8(".java\":{\"filename\":\"File")
+          .writeDecimalLong(i).writeUtf8(".java\",\"size\":128,\"truncated\":false,")
+          .writeUtf8("\"content\":\"public final class File").writeDecimalLong(i)
+          .writeUtf8(" {\\n}\\n\"}");
+    }
+    buffer.writeUtf8("},\"public\":true,\"comments\":0}");
+    return buffer.readByteString();
+  }
+
+  static void run(AdapterFactory factory, ByteString json) throws IOException {
+    // First call: build the adapter and decode once, as an app does on its first response.
+    long start = System.nanoTime();
+    JsonAdapter<Gist> adapter = factory.create();
+    Gist gist = adapter.fromJson(new Buffer().write(json));
+    long firstCallNanos = System.nanoTime() - start;
+    if (gist.files.isEmpty()) throw new AssertionError();
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      adapter.fromJson(new Buffer().write(json));
+    }
+
+    // Report the best round; the others are mostly GC and JIT noise.
+    long elapsedNanos = Long.MAX_VALUE;
+    long allocated = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      long allocatedBefore = allocatedBytes();
+      start = System.nanoTime();
+      for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+        adapter.fromJson(new Buffer().write(json));
+      }
+      elapsedNanos = Math.min(elapsedNanos, System.nanoTime() - start);
+      allocated = Math.min(allocated, allocatedBytes() - allocatedBefore);
+    }
+
+    System.out.format("%-12s first call %6d us, %8.0f decodes/s, %s bytes/decode%n",
+        factory, firstCallNanos / 1000L, MEASURED_ITERATIONS * 1e9 / elapsedNanos,
+        allocatedBytes() != -1L ? Long.toString(allocated / MEASURED_ITERATIONS) : "?");
+  }
+
+  /** Returns the bytes allocated by this thread, or -1 if that isn't available. */
+  private static long allocatedBytes() {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) return -1L;
+    return ((com.sun.management.ThreadMXBean) threadMXBean)
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  public static void main(String... args) throws Exception {
+    ByteString json = gistJson(8);
+    if (args.length > 0 && args[0].equals("reflective")) {
+      run(REFLECTIVE, json);
+    } else if (args.length > 0 && args[0].equals("hand-written")) {
+      run(HAND_WRITTEN, json);
+    } else {
+      run(HAND_WRITTEN, json);
+      run(REFLECTIVE, json);
+    }
+  }
+}
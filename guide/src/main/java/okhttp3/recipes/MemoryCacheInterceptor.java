@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Cache;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.internal.cache.CacheStrategy;
+import okhttp3.internal.http.HttpMethod;
+import okio.ByteString;
+
+/**
+ * An in-memory cache tier for small, hot responses. Install it as an application interceptor on a
+ * client that also has a disk {@link Cache}: hits are served from memory without touching the
+ * disk, and misses fall through to the disk cache and then the network. Responses the client
+ * receives, whether from disk or network, are admitted to memory if they're small enough.
+ *
+ * <p>Freshness is decided by OkHttp's own {@link CacheStrategy}, so request directives are
+ * honored: {@link okhttp3.CacheControl#FORCE_NETWORK} bypasses memory entirely, and {@link
+ * okhttp3.CacheControl#FORCE_CACHE} is served from memory even when the entry is stale. Requests
+ * that invalidate the cache, like {@code POST}, evict the URL. Responses that {@code Vary} by
+ * request headers are left to the disk cache.
+ *
+ * <p>The cache is bounded by body bytes. Eviction is least-recently-used, but a new entry is only
+ * admitted if it has been requested more often than the entries it would evict, as counted by a
+ * small {@linkplain FrequencySketch frequency sketch}. This keeps a scan of one-off URLs from
+ * flushing out the hot set.
+ */
+public final class MemoryCacheInterceptor implements Interceptor {
+  private final long maxSize;
+  private final long maxEntrySize;
+  private final FrequencySketch sketch;
+
+  /** Guarded by this. Iterates from least to most recently used. */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(0, 0.75f, true);
+  private long size;
+  private int hitCount;
+  private int requestCount;
+  private int rejectCount;
+
+  /**
+   * @param maxSize the maximum number of body bytes to hold.
+   * @param maxEntrySize the largest body to hold. Larger responses are left to the disk cache.
+   */
+  public MemoryCacheInterceptor(long maxSize, long maxEntrySize) {
+    if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+    if (maxEntrySize <= 0 || maxEntrySize > maxSize) {
+      throw new IllegalArgumentException("maxEntrySize out of range");
+    }
+    this.maxSize = maxSize;
+    this.maxEntrySize = maxEntrySize;
+    this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(64, maxSize / 1024)));
+  }
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    String key = request.url().toString();
+
+    if (!request.method().equals("GET")) {
+      if (HttpMethod.invalidatesCache(request.method())) remove(key);
+      return chain.proceed(request);
+    }
+
+    Entry entry = get(key, !request.cacheControl().noCache());
+    if (entry != null) {
+      CacheStrategy strategy = new CacheStrategy.Factory(
+          System.currentTimeMillis(), request, entry.response).get();
+      if (strategy.networkRequest == null && strategy.cacheResponse != null) {
+        recordHit();
+        return strategy.cacheResponse.newBuilder()
+            .request(request)
+            .body(ResponseBody.create(entry.contentType, entry.bytes.toByteArray()))
+            .cacheResponse(entry.response)
+            .build();
+      }
+    }
+
+    Response response = chain.proceed(request);
+    return maybeAdmit(key, request, response);
+  }
+
+  /**
+   * Buffers {@code response} and stores it if it's small and cacheable. Returns a response the
+   * caller can read.
+   */
+  private Response maybeAdmit(String key, Request request, Response response) throws IOException {
+    ResponseBody body = response.body();
+    long contentLength = body != null ? body.contentLength() : -1L;
+    if (response.code() != 200
+        || contentLength < 0
+        || contentLength > maxEntrySize
+        || response.header("Vary") != null
+        || !CacheStrategy.isCacheable(response, request)) {
+      return response;
+    }
+
+    ByteString bytes = ByteString.of(body.bytes());
+    Response stripped = response.newBuilder()
+        .request(request)
+        .body(null)
+        .networkResponse(null)
+        .cacheResponse(null)
+        .priorResponse(null)
+        .build();
+    put(key, new Entry(stripped, body.contentType(), bytes));
+
+    return response.newBuilder()
+        .body(ResponseBody.create(body.contentType(), bytes.toByteArray()))
+        .build();
+  }
+
+  private synchronized Entry get(String key, boolean lookup) {
+    requestCount++;
+    sketch.increment(key.hashCode());
+    return lookup ? entries.get(key) : null;
+  }
+
+  private synchronized void recordHit() {
+    hitCount++;
+  }
+
+  private synchronized void put(String key, Entry entry) {
+    Entry previous = entries.remove(key);
+    if (previous != null) size -= previous.bytes.size();
+
+    // Find the entries that would have to go to make room, and admit the newcomer only if it's
+    // requested more often than each of them.
+    long needed = size + entry.bytes.size() - maxSize;
+    if (needed > 0) {
+      int frequency = sketch.frequency(key.hashCode());
+      List<String> victims = new ArrayList<>();
+      for (Map.Entry<String, Entry> eldest : entries.entrySet()) {
+        if (needed <= 0) break;
+        if (sketch.frequency(eldest.getKey().hashCode()) >= frequency) {
+          rejectCount++;
+          return;
+        }
+        victims.add(eldest.getKey());
+        needed -= eldest.getValue().bytes.size();
+      }
+      for (String victim : victims) {
+        size -= entries.remove(victim).bytes.size();
+      }
+    }
+
+    entries.put(key, entry);
+    size += entry.bytes.size();
+  }
+
+  private synchronized void remove(String key) {
+    Entry removed = entries.remove(key);
+    if (removed != null) size -= removed.bytes.size();
+  }
+
+  public synchronized void evictAll() {
+    entries.clear();
+    size = 0L;
+  }
+
+  /** Returns the number of body bytes held. */
+  public synchronized long size() {
+    return size;
+  }
+
+  public long maxSize() {
+    return maxSize;
+  }
+
+  public synchronized int hitCount() {
+    return hitCount;
+  }
+
+  public synchronized int requestCount() {
+    return requestCount;
+  }
+
+  /** Returns the number of cacheable responses that weren't admitted for being too rare. */
+  public synchronized int rejectCount() {
+    return rejectCount;
+  }
+
+  /** Returns the URLs held, least recently used first. */
+  public synchronized Iterator<String> urls() {
+    return new ArrayList<>(entries.keySet()).iterator();
+  }
+
+  static final class Entry {
+    /** The response headers, without a body. */
+    final Response response;
+    final MediaType contentType;
+    final ByteString bytes;
+
+    Entry(Response response, MediaType contentType, ByteString bytes) {
+      this.response = response;
+      this.contentType = contentType;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Approximate request counts per key in a fixed amount of memory. This is a count-min sketch
+   * with four hashes over small saturating counters; when enough increments have been recorded,
+   * every counter is halved so that the counts reflect recent popularity rather than all time.
+   */
+  static final class FrequencySketch {
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+
+    private final byte[] counters;
+    private final int mask;
+    private final int resetThreshold;
+    private int additions;
+
+    FrequencySketch(int expectedKeys) {
+      int width = Integer.highestOneBit(Math.max(16, expectedKeys - 1) << 1);
+      this.counters = new byte[width];
+      this.mask = width - 1;
+      this.resetThreshold = width * 10;
+    }
+
+    void increment(int hash) {
+      boolean added = false;
+      for (int seed : SEEDS) {
+        int index = index(hash, seed);
+        if (counters[index] < MAX_COUNT) {
+          counters[index]++;
+          added = true;
+        }
+      }
+      if (added && ++additions >= resetThreshold) {
+        for (int i = 0; i < counters.length; i++) {
+          counters[i] >>= 1;
+        }
+        additions /= 2;
+      }
+    }
+
+    int frequency(int hash) {
+      int frequency = MAX_COUNT;
+      for (int seed : SEEDS) {
+        frequency = Math.min(frequency, counters[index(hash, seed)]);
+      }
+      return frequency;
+    }
+
+    private int index(int hash, int seed) {
+      int h = (hash ^ seed) * 0x01000193;
+      return (h ^ (h >>> 16)) & mask;
+    }
+  }
+
+  /** Compares hit latency of the disk cache with and without the memory tier in front of it. */
+  public static void main(String... args) throws Exception {
+    Cache cache = new Cache(new File("MemoryCacheInterceptor.tmp"), 10 * 1024 * 1024);
+    OkHttpClient diskOnly = new OkHttpClient.Builder()
+        .cache(cache)
+        .build();
+    OkHttpClient memoryAndDisk = diskOnly.newBuilder()
+        .addInterceptor(new MemoryCacheInterceptor(1024 * 1024, 64 * 1024))
+        .build();
+
+    Request request = new Request.Builder()
+        .url("http://publicobject.com/helloworld.txt")
+        .build();
+
+    for (OkHttpClient client : new OkHttpClient[] {diskOnly, memoryAndDisk}) {
+      for (int i = 0; i < 2; i++) { // Warm up the cache.
+        client.newCall(request).execute().body().close();
+      }
+
+      int iterations = 2000;
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        Response response = client.newCall(request).execute();
+        response.body().bytes();
+        if (response.networkResponse() != null) throw new AssertionError("not a cache hit");
+      }
+      long elapsed = System.nanoTime() - start;
+      System.out.format("%s: %.1f us per hit%n", client == diskOnly ? "disk" : "memory + disk",
+          (double) TimeUnit.NANOSECONDS.toMicros(elapsed) / iterations);
+    }
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import okio.Buffer;
+import okio.Sink;
+import okio.Timeout;
+
+/**
+ * A sink that gzips like pigz: input is cut into fixed-size blocks that are compressed
+ * concurrently, each into a complete gzip member, and the members are written to the underlying
+ * sink in order. RFC 1952 permits a gzip file to hold several members, and readers like {@code
+ * gunzip} and {@link java.util.zip.GZIPInputStream} decode them as one stream.
+ *
+ * <p>Memory is bounded: once {@code maxBlocksInFlight} blocks are queued or compressing, writes
+ * block on the oldest one. Only the calling thread writes to the underlying sink.
+ */
+public final class ParallelGzipSink implements Sink {
+  private final Sink sink;
+  private final ExecutorService executor;
+  private final ZlibPool pool;
+  private final int level;
+  private final int blockSize;
+  private final int maxBlocksInFlight;
+  private final Buffer pending = new Buffer();
+  private final ArrayDeque<Future<Buffer>> inFlight = new ArrayDeque<>();
+  private boolean wroteMember;
+  private boolean closed;
+
+  /**
+   * @param executor runs compression tasks, typically a {@link java.util.concurrent.ForkJoinPool}
+   *     sized to the number of cores.
+   * @param maxBlocksInFlight how many blocks may be queued or compressing at once. Twice the
+   *     executor's parallelism keeps every worker busy while the previous results are written.
+   */
+  public ParallelGzipSink(Sink sink, ExecutorService executor, ZlibPool pool, int level,
+      int blockSize, int maxBlocksInFlight) {
+    if (blockSize <= 0) throw new IllegalArgumentException("blockSize <= 0");
+    if (maxBlocksInFlight <= 0) throw new IllegalArgumentException("maxBlocksInFlight <= 0");
+    this.sink = sink;
+    this.executor = executor;
+    this.pool = pool;
+    this.level = level;
+    this.blockSize = blockSize;
+    this.maxBlocksInFlight = maxBlocksInFlight;
+  }
+
+  @Override public void write(Buffer source, long byteCount) throws IOException {
+    if (closed) throw new IllegalStateException("closed");
+    pending.write(source, byteCount);
+    while (pending.size() >= blockSize) {
+      Buffer block = new Buffer();
+      block.write(pending, blockSize);
+      submit(block);
+    }
+  }
+
+  /** Compresses whatever is pending as a short member and writes out every finished member. */
+  @Override public void flush() throws IOException {
+    if (closed) throw new IllegalStateException("closed");
+    if (pending.size() > 0) {
+      Buffer block = new Buffer();
+      block.write(pending, pending.size());
+      submit(block);
+    }
+    while (!inFlight.isEmpty()) {
+      writeOldest();
+    }
+    sink.flush();
+  }
+
+  private void submit(final Buffer block) throws IOException {
+    while (inFlight.size() >= maxBlocksInFlight) {
+      writeOldest();
+    }
+    inFlight.add(executor.submit(new Callable<Buffer>() {
+      @Override public Buffer call() throws IOException {
+        Buffer member = new Buffer();
+        Sink gzipSink = pool.gzip(member, level);
+        gzipSink.write(block, block.size());
+        gzipSink.close();
+        return member;
+      }
+    }));
+    wroteMember = true;
+  }
+
+  private void writeOldest() throws IOException {
+    Future<Buffer> future = inFlight.remove();
+    Buffer member;
+    try {
+      member = future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while compressing");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IOException(cause);
+    }
+    sink.write(member, member.size());
+  }
+
+  @Override public Timeout timeout() {
+    return sink.timeout();
+  }
+
+  @Override public void close() throws IOException {
+    if (closed) return;
+    closed = true;
+
+    Throwable thrown = null;
+    try {
+      // An empty input still needs one (empty) member to be a valid gzip stream.
+      if (pending.size() > 0 || !wroteMember) {
+        Buffer block = new Buffer();
+        block.write(pending, pending.size());
+        submit(block);
+      }
+      while (!inFlight.isEmpty()) {
+        writeOldest();
+      }
+    } catch (Throwable e) {
+      thrown = e;
+      for (Future<Buffer> future : inFlight) {
+        future.cancel(false);
+      }
+      inFlight.clear();
+    }
+
+    try {
+      sink.close();
+    } catch (Throwable e) {
+      if (thrown == null) thrown = e;
+    }
+
+    if (thrown instanceof IOException) throw (IOException) thrown;
+    if (thrown instanceof RuntimeException) throw (RuntimeException) thrown;
+    if (thrown instanceof Error) throw (Error) thrown;
+  }
+
+  /**
+   * Abandons the stream without writing its remainder. Blocks that haven't started compressing
+   * are canceled; those already running finish and return their deflaters to the pool. The
+   * underlying sink is not closed.
+   */
+  public void abort() {
+    if (closed) return;
+    closed = true;
+    for (Future<Buffer> future : inFlight) {
+      future.cancel(false);
+    }
+    inFlight.clear();
+    pending.clear();
+  }
+}
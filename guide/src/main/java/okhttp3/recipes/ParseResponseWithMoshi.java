@@ -16,12 +16,15 @@
 package okhttp3.recipes;
 
 import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonReader;
+import com.squareup.moshi.JsonWriter;
 import com.squareup.moshi.Moshi;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -30,7 +33,10 @@ import java.util.Map;
  */
 public final class ParseResponseWithMoshi {
   private final OkHttpClient client = new OkHttpClient();
-  private final Moshi moshi = new Moshi.Builder().build();
+  private final Moshi moshi = new Moshi.Builder()
+      .add(Gist.class, new GistJsonAdapter(new GistFileJsonAdapter()).nullSafe())
+      .add(GistFile.class, new GistFileJsonAdapter().nullSafe())
+      .build();
   private final JsonAdapter<Gist> gistJsonAdapter = moshi.adapter(Gist.class);
 
   public void run() throws Exception {
@@ -57,6 +63,104 @@ public final class ParseResponseWithMoshi {
     String content;
   }
 
+  /**
+   * Decodes {@link Gist} without reflection. Moshi's reflective adapter looks up fields and
+   * creates instances reflectively; this is what an annotation processor would generate instead.
+   */
+  static final class GistJsonAdapter extends JsonAdapter<Gist> {
+    private final JsonAdapter<GistFile> gistFileAdapter;
+
+    GistJsonAdapter(JsonAdapter<GistFile> gistFileAdapter) {
+      this.gistFileAdapter = gistFileAdapter;
+    }
+
+    @Override public Gist fromJson(JsonReader reader) throws IOException {
+      Gist gist = new Gist();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "files":
+            if (reader.peek() == JsonReader.Token.NULL) {
+              gist.files = reader.nextNull();
+              break;
+            }
+            gist.files = new LinkedHashMap<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+              String name = reader.nextName();
+              GistFile file = reader.peek() == JsonReader.Token.NULL
+                  ? reader.<GistFile>nextNull()
+                  : gistFileAdapter.fromJson(reader);
+              gist.files.put(name, file);
+            }
+            reader.endObject();
+            break;
+          default:
+            reader.skipValue();
+            break;
+        }
+      }
+      reader.endObject();
+      return gist;
+    }
+
+    @Override public void toJson(JsonWriter writer, Gist gist) throws IOException {
+      writer.beginObject();
+      writer.name("files");
+      if (gist.files == null) {
+        writer.nullValue();
+      } else {
+        writer.beginObject();
+        for (Map.Entry<String, GistFile> entry : gist.files.entrySet()) {
+          writer.name(entry.getKey());
+          if (entry.getValue() == null) {
+            writer.nullValue();
+          } else {
+            gistFileAdapter.toJson(writer, entry.getValue());
+          }
+        }
+        writer.endObject();
+      }
+      writer.endObject();
+    }
+
+    @Override public String toString() {
+      return "JsonAdapter(Gist)";
+    }
+  }
+
+  /** Decodes {@link GistFile} without reflection. */
+  static final class GistFileJsonAdapter extends JsonAdapter<GistFile> {
+    @Override public GistFile fromJson(JsonReader reader) throws IOException {
+      GistFile file = new GistFile();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "content":
+            file.content = reader.peek() == JsonReader.Token.NULL
+                ? reader.<String>nextNull()
+                : reader.nextString();
+            break;
+          default:
+            reader.skipValue();
+            break;
+        }
+      }
+      reader.endObject();
+      return file;
+    }
+
+    @Override public void toJson(JsonWriter writer, GistFile file) throws IOException {
+      writer.beginObject();
+      writer.name("content").value(file.content);
+      writer.endObject();
+    }
+
+    @Override public String toString() {
+      return "JsonAdapter(GistFile)";
+    }
+  }
+
   public static void main(String... args) throws Exception {
     new ParseResponseWithMoshi().run();
   }
@@ -16,6 +16,11 @@
 package okhttp3.recipes;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 import okhttp3.Interceptor;
@@ -40,14 +45,20 @@ public final class ProgressDownload {
         .url("http://publicobject.com/helloworld.txt")
         .build();
 
-    final ProgressListener progressListener = new ProgressListener() {
-      @Override public void update(long bytesRead, long contentLength, boolean done) {
-        System.out.println(bytesRead);
-        System.out.println(contentLength);
-        System.out.println(done);
-        System.out.format("%d%% done\n", (100 * bytesRead) / contentLength);
-      }
-    };
+    // Report at most every 64 KiB or 100 ms, on a separate thread so printing can't slow the
+    // transfer down.
+    final ExecutorService progressExecutor = Executors.newSingleThreadExecutor();
+    final ProgressListener progressListener = new CoalescingProgressListener(
+        new ProgressListener() {
+          @Override public void update(long bytesRead, long contentLength, boolean done) {
+            System.out.println(bytesRead);
+            System.out.println(contentLength);
+            System.out.println(done);
+            if (contentLength > 0) {
+              System.out.format("%d%% done\n", (100 * bytesRead) / contentLength);
+            }
+          }
+        }, 64 * 1024, 100, TimeUnit.MILLISECONDS, progressExecutor);
 
     OkHttpClient client = new OkHttpClient.Builder()
 //        .addNetworkInterceptor(new Interceptor() {
@@ -73,11 +84,8 @@ public final class ProgressDownload {
             logger.info(String.format("Received response for %s in %.1fms%n%s",
                     response.request().url(), (t2 - t1) / 1.0e6d, response.headers()));
 
-
-
-            Response originalResponse = chain.proceed(chain.request());
-            return originalResponse.newBuilder()
-                .body(new ProgressResponseBody(originalResponse.body(), progressListener))
+            return response.newBuilder()
+                .body(new ProgressResponseBody(response.body(), progressListener))
                 .build();
           }
         })
@@ -87,6 +95,8 @@ public final class ProgressDownload {
       if (!response.isSuccessful()) throw new IOException("Unexpected code " + response);
 
       System.out.println(response.body().string());
+    } finally {
+      progressExecutor.shutdown();
     }
   }
 
@@ -121,6 +131,7 @@ public final class ProgressDownload {
     }
 
     private Source source(Source source) {
+      final long contentLength = responseBody.contentLength();
       return new ForwardingSource(source) {
         long totalBytesRead = 0L;
 
@@ -128,7 +139,7 @@ public final class ProgressDownload {
           long bytesRead = super.read(sink, byteCount);
           // read() returns the number of bytes read, or -1 if this source is exhausted.
           totalBytesRead += bytesRead != -1 ? bytesRead : 0;
-          progressListener.update(totalBytesRead, responseBody.contentLength(), bytesRead == -1);
+          progressListener.update(totalBytesRead, contentLength, bytesRead == -1);
           return bytesRead;
         }
       };
@@ -138,4 +149,57 @@ public final class ProgressDownload {
   interface ProgressListener {
     void update(long bytesRead, long contentLength, boolean done);
   }
+
+  /**
+   * Forwards progress to a delegate listener no more often than every {@code minByteDelta} bytes
+   * or {@code minInterval}, whichever comes first. The final update is always forwarded.
+   *
+   * <p>Updates that are dropped cost two comparisons and a clock read, so this can sit on a read
+   * path that is called for every segment. When an executor is supplied, the delegate runs there;
+   * if it falls behind, intermediate updates are skipped and it sees only the latest. Use a serial
+   * executor so updates aren't delivered out of order.
+   */
+  static final class CoalescingProgressListener implements ProgressListener {
+    private final ProgressListener delegate;
+    private final long minByteDelta;
+    private final long minIntervalNanos;
+    private final Executor executor;
+    private final AtomicReference<long[]> pending = new AtomicReference<>();
+    private final Runnable deliverPending = new Runnable() {
+      @Override public void run() {
+        long[] update = pending.getAndSet(null);
+        if (update != null) {
+          delegate.update(update[0], update[1], update[2] != 0);
+        }
+      }
+    };
+    private long lastBytes;
+    private long lastNanos = System.nanoTime();
+
+    /** @param executor the executor to notify {@code delegate} on, or null for the caller's. */
+    CoalescingProgressListener(ProgressListener delegate, long minByteDelta, long minInterval,
+        TimeUnit unit, Executor executor) {
+      this.delegate = delegate;
+      this.minByteDelta = minByteDelta;
+      this.minIntervalNanos = unit.toNanos(minInterval);
+      this.executor = executor;
+    }
+
+    @Override public void update(long bytesRead, long contentLength, boolean done) {
+      if (!done && bytesRead - lastBytes < minByteDelta) {
+        long now = System.nanoTime();
+        if (now - lastNanos < minIntervalNanos) return;
+        lastNanos = now;
+      } else {
+        lastNanos = System.nanoTime();
+      }
+      lastBytes = bytesRead;
+
+      if (executor == null) {
+        delegate.update(bytesRead, contentLength, done);
+      } else if (pending.getAndSet(new long[] {bytesRead, contentLength, done ? 1 : 0}) == null) {
+        executor.execute(deliverPending);
+      }
+    }
+  }
 }
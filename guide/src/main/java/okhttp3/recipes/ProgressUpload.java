@@ -18,8 +18,12 @@ package okhttp3.recipes;
 import okhttp3.*;
 import okio.*;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.logging.Logger;
 
 /**
@@ -47,11 +51,13 @@ public final class ProgressUpload {
         //构造上传请求，类似web表单
         RequestBody requestBody = new MultipartBody.Builder().setType(MultipartBody.FORM)
                 .addFormDataPart("hello", "android")
-                .addFormDataPart("photo", file.getName(), RequestBody.create(MediaType.parse("application/octet-stream"), file))
+                .addFormDataPart("photo", file.getName(), new FileRegionRequestBody(
+                        MediaType.parse("application/octet-stream"), file, 0, file.length(), null, 0))
                 .build();
 
-        //进行包装，使其支持进度回调
-        final Request request = new Request.Builder().url("http://publicobject.com/helloworld.txt").post(new ProgressRequestBody(requestBody, progressListener)).build();
+        //进行包装，使其支持进度回调；每写入 64 KiB 才回调一次
+        final Request request = new Request.Builder().url("http://publicobject.com/helloworld.txt")
+                .post(new ProgressRequestBody(requestBody, progressListener, 64 * 1024)).build();
         //开始请求
 
 
@@ -74,8 +80,8 @@ public final class ProgressUpload {
         private final RequestBody requestBody;
         //进度回调接口
         private final ProgressListener progressListener;
-        //包装完成的BufferedSink
-        private BufferedSink bufferedSink;
+        //两次回调之间至少写入的字节数
+        private final long minByteDelta;
 
         /**
          * 构造函数，赋值
@@ -84,8 +90,21 @@ public final class ProgressUpload {
          * @param progressListener 回调接口
          */
         public ProgressRequestBody(RequestBody requestBody, ProgressListener progressListener) {
+            this(requestBody, progressListener, 0L);
+        }
+
+        /**
+         * 构造函数，合并进度回调
+         *
+         * @param requestBody      待包装的请求体
+         * @param progressListener 回调接口
+         * @param minByteDelta     两次回调之间至少写入的字节数，完成时总会回调
+         */
+        public ProgressRequestBody(RequestBody requestBody, ProgressListener progressListener,
+                long minByteDelta) {
             this.requestBody = requestBody;
             this.progressListener = progressListener;
+            this.minByteDelta = minByteDelta;
         }
 
         /**
@@ -117,10 +136,8 @@ public final class ProgressUpload {
          */
         @Override
         public void writeTo(BufferedSink sink) throws IOException {
-            if (bufferedSink == null) {
-                //包装
-                bufferedSink = Okio.buffer(sink(sink));
-            }
+            //每次都重新包装：重试时 OkHttp 会传入新的 sink，且计数需要从零开始
+            BufferedSink bufferedSink = Okio.buffer(sink(sink, contentLength()));
             //写入
             requestBody.writeTo(bufferedSink);
             //必须调用flush，否则最后一部分数据可能不会被写入
@@ -131,31 +148,97 @@ public final class ProgressUpload {
         /**
          * 写入，回调进度接口
          *
-         * @param sink Sink
+         * @param sink          Sink
+         * @param contentLength 总字节长度，避免多次调用contentLength()方法
          * @return Sink
          */
-        private Sink sink(Sink sink) {
+        private Sink sink(Sink sink, final long contentLength) {
             return new ForwardingSink(sink) {
                 //当前写入字节数
                 long bytesWritten = 0L;
-                //总字节长度，避免多次调用contentLength()方法
-                long contentLength = 0L;
+                //上次回调时的写入字节数
+                long bytesReported = 0L;
 
                 @Override
                 public void write(Buffer source, long byteCount) throws IOException {
                     super.write(source, byteCount);
-                    if (contentLength == 0) {
-                        //获得contentLength的值，后续不再调用
-                        contentLength = contentLength();
-                    }
                     //增加当前写入的字节数
                     bytesWritten += byteCount;
-                    //回调
-                    if (progressListener != null) {
-                        progressListener.update(bytesWritten, contentLength, bytesWritten == contentLength);
+                    boolean done = bytesWritten == contentLength;
+                    //回调，未完成时按 minByteDelta 合并
+                    if (progressListener != null
+                            && (done || bytesWritten - bytesReported >= minByteDelta)) {
+                        bytesReported = bytesWritten;
+                        progressListener.update(bytesWritten, contentLength, done);
                     }
                 }
             };
         }
     }
+
+    /**
+     * 文件的一段作为请求体，边读边写，不把文件读入内存。
+     *
+     * <p>通过 {@link FileChannel} 的定位读取每次读 64 KiB 到同一个数组，再整块写入 sink，
+     * 因此写入次数和进度回调次数都按块计算。每次 {@link #writeTo} 都从 {@code offset} 重新读取，
+     * 所以可以安全地重试，也可以用于分块上传。
+     */
+    static final class FileRegionRequestBody extends RequestBody {
+        private static final int CHUNK_SIZE = 64 * 1024;
+
+        private final MediaType contentType;
+        private final File file;
+        private final long offset;
+        private final long byteCount;
+        //可为 null；回调的进度是文件中的位置，而不是本段内的字节数
+        private final ProgressListener progressListener;
+        private final long totalLength;
+
+        /**
+         * @param progressListener 回调接口，可为 null
+         * @param totalLength      回调时报告的总长度，通常是文件长度
+         */
+        FileRegionRequestBody(MediaType contentType, File file, long offset, long byteCount,
+                ProgressListener progressListener, long totalLength) {
+            if (offset < 0 || byteCount < 0) throw new IllegalArgumentException();
+            this.contentType = contentType;
+            this.file = file;
+            this.offset = offset;
+            this.byteCount = byteCount;
+            this.progressListener = progressListener;
+            this.totalLength = totalLength;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return contentType;
+        }
+
+        @Override
+        public long contentLength() {
+            return byteCount;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            try (FileInputStream in = new FileInputStream(file)) {
+                FileChannel channel = in.getChannel();
+                byte[] array = new byte[(int) Math.min(CHUNK_SIZE, Math.max(byteCount, 1))];
+                ByteBuffer buffer = ByteBuffer.wrap(array);
+                long end = offset + byteCount;
+                for (long position = offset; position < end; ) {
+                    buffer.clear().limit((int) Math.min(array.length, end - position));
+                    int read = channel.read(buffer, position);
+                    if (read == -1) {
+                        throw new EOFException(file + " is shorter than " + end + " bytes");
+                    }
+                    sink.write(array, 0, read);
+                    position += read;
+                    if (progressListener != null) {
+                        progressListener.update(position, totalLength, position == totalLength);
+                    }
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.internal.Util;
+import okhttp3.recipes.ProgressDownload.ProgressListener;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+/**
+ * Downloads a large file over several connections at once. A one-byte range request probes the
+ * file's length and whether the server supports ranges; the file is then preallocated and split
+ * into ranges that are fetched in parallel, each written straight to its place in the file with
+ * positional {@link FileChannel} writes.
+ *
+ * <p>Completed ranges are recorded in a small manifest next to the file, so an interrupted
+ * download resumes where it left off. The manifest is discarded if the server's validator (its
+ * {@code ETag} or {@code Last-Modified} date) or the file's length changes. Every range request
+ * carries {@code If-Range}, so a file that changes mid-download fails rather than being stitched
+ * together from two versions. Requests ask for {@code Accept-Encoding: identity}: OkHttp would
+ * otherwise request gzip, and ranges of a compressed stream can't be stitched into the file.
+ *
+ * <p>The {@code static-server} sample serves byte ranges and can be used to try this locally.
+ */
+public final class RangedDownload {
+  private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+  private static final Pattern UNSATISFIED_RANGE = Pattern.compile("bytes \\*/(\\d+)");
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  private final OkHttpClient client;
+  private final int parallelism;
+  private final long rangeSize;
+
+  public RangedDownload(OkHttpClient client, int parallelism, long rangeSize) {
+    if (parallelism <= 0) throw new IllegalArgumentException("parallelism <= 0");
+    if (rangeSize <= 0) throw new IllegalArgumentException("rangeSize <= 0");
+    this.client = client;
+    this.parallelism = parallelism;
+    this.rangeSize = rangeSize;
+  }
+
+  public void download(HttpUrl url, File file, ProgressListener listener) throws IOException {
+    Request probe = new Request.Builder()
+        .url(url)
+        .header("Range", "bytes=0-0")
+        .header("Accept-Encoding", "identity")
+        .build();
+
+    long length;
+    String validator;
+    Response response = client.newCall(probe).execute();
+    try {
+      if (response.code() == 416) {
+        // Even the first byte is out of range: the file is empty.
+        Matcher unsatisfied = UNSATISFIED_RANGE.matcher(
+            String.valueOf(response.header("Content-Range")));
+        if (!unsatisfied.matches() || Long.parseLong(unsatisfied.group(1)) != 0L) {
+          throw new IOException("Unexpected code " + response);
+        }
+        downloadEmpty(file, listener);
+        return;
+      }
+
+      if (response.code() != 206) {
+        if (!response.isSuccessful()) throw new IOException("Unexpected code " + response);
+        // No range support. Use the response we already have rather than asking again.
+        downloadWhole(response, file, listener);
+        return;
+      }
+
+      Matcher contentRange = CONTENT_RANGE.matcher(
+          String.valueOf(response.header("Content-Range")));
+      if (!contentRange.matches()) throw new IOException("Unexpected Content-Range: " + response);
+      String etag = response.header("ETag");
+      validator = etag != null && !etag.startsWith("W/")
+          ? etag
+          : response.header("Last-Modified");
+      length = Long.parseLong(contentRange.group(3));
+    } finally {
+      response.close(); // Don't hold the probe's connection during the download.
+    }
+
+    downloadRanges(url, file, length, validator, listener);
+  }
+
+  private void downloadEmpty(File file, ProgressListener listener) throws IOException {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(0);
+    } finally {
+      randomAccessFile.close();
+    }
+    new File(file.getPath() + ".manifest").delete();
+    listener.update(0, 0, true);
+  }
+
+  private void downloadWhole(Response response, File file, ProgressListener listener)
+      throws IOException {
+    long contentLength = response.body().contentLength();
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(0);
+      FileChannel channel = randomAccessFile.getChannel();
+      AtomicLong total = new AtomicLong();
+      copy(response.body().source(), channel, 0, Long.MAX_VALUE, new AtomicLong(), total,
+          contentLength, listener);
+      listener.update(total.get(), contentLength, true);
+    } finally {
+      randomAccessFile.close();
+    }
+    new File(file.getPath() + ".manifest").delete();
+  }
+
+  private void downloadRanges(final HttpUrl url, File file, final long length,
+      final String validator, final ProgressListener listener) throws IOException {
+    final int rangeCount = (int) ((length + rangeSize - 1) / rangeSize);
+    final Manifest manifest = Manifest.open(
+        new File(file.getPath() + ".manifest"), url, length, validator, rangeSize, file.exists());
+    final AtomicLong total = new AtomicLong();
+    for (int i = 0; i < rangeCount; i++) {
+      if (manifest.isComplete(i)) total.addAndGet(rangeLength(i, length));
+    }
+
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      randomAccessFile.setLength(length); // Preallocate.
+      final FileChannel channel = randomAccessFile.getChannel();
+      final AtomicInteger nextRange = new AtomicInteger();
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+      ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, rangeCount));
+      for (int t = 0; t < parallelism && t < rangeCount; t++) {
+        executor.execute(new Runnable() {
+          @Override public void run() {
+            for (int i; failure.get() == null && (i = nextRange.getAndIncrement()) < rangeCount; ) {
+              if (manifest.isComplete(i)) continue;
+              AtomicLong rangeTotal = new AtomicLong();
+              try {
+                downloadRange(url, validator, channel, i, length, rangeTotal, total, listener);
+                channel.force(false); // Persist the bytes before recording them as complete.
+                manifest.markComplete(i);
+              } catch (Throwable e) {
+                total.addAndGet(-rangeTotal.get()); // This range will be fetched again.
+                failure.compareAndSet(null, e);
+              }
+            }
+          }
+        });
+      }
+      executor.shutdown();
+      try {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted; download can be resumed");
+      }
+
+      Throwable thrown = failure.get();
+      if (thrown instanceof IOException) throw (IOException) thrown;
+      if (thrown instanceof RuntimeException) throw (RuntimeException) thrown;
+      if (thrown instanceof Error) throw (Error) thrown;
+    } finally {
+      randomAccessFile.close();
+      manifest.close();
+    }
+
+    manifest.delete();
+    listener.update(total.get(), length, true);
+  }
+
+  private void downloadRange(HttpUrl url, String validator, FileChannel channel, int index,
+      long length, AtomicLong rangeTotal, AtomicLong total, ProgressListener listener)
+      throws IOException {
+    long start = index * rangeSize;
+    long end = start + rangeLength(index, length) - 1;
+    Request.Builder request = new Request.Builder()
+        .url(url)
+        .header("Range", "bytes=" + start + "-" + end)
+        .header("Accept-Encoding", "identity");
+    if (validator != null) {
+      request.header("If-Range", validator);
+    }
+
+    Response response = client.newCall(request.build()).execute();
+    try {
+      if (response.code() != 206) {
+        throw new IOException("Range " + start + "-" + end + " not served; file changed? "
+            + response);
+      }
+      Matcher contentRange = CONTENT_RANGE.matcher(
+          String.valueOf(response.header("Content-Range")));
+      if (!contentRange.matches()
+          || Long.parseLong(contentRange.group(1)) != start
+          || Long.parseLong(contentRange.group(2)) != end) {
+        throw new IOException("Unexpected Content-Range: " + response);
+      }
+      copy(response.body().source(), channel, start, end - start + 1, rangeTotal, total, length,
+          listener);
+    } finally {
+      response.close();
+    }
+  }
+
+  private long rangeLength(int index, long length) {
+    return Math.min(rangeSize, length - index * rangeSize);
+  }
+
+  /**
+   * Copies up to {@code byteCount} bytes to {@code channel} at {@code position}. Progress is added
+   * to both {@code copied} and {@code total}.
+   */
+  private static void copy(BufferedSource source, FileChannel channel, long position,
+      long byteCount, AtomicLong copied, AtomicLong total, long length, ProgressListener listener)
+      throws IOException {
+    byte[] array = new byte[COPY_BUFFER_SIZE];
+    ByteBuffer buffer = ByteBuffer.wrap(array);
+    while (byteCount > 0) {
+      int read = DownloadToFile.fill(source, array, (int) Math.min(array.length, byteCount));
+      if (read == -1) {
+        if (byteCount == Long.MAX_VALUE) return; // Unbounded copy reached the end of the body.
+        throw new IOException("Body ended " + byteCount + " bytes early");
+      }
+      buffer.clear().limit(read);
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+      if (byteCount != Long.MAX_VALUE) byteCount -= read;
+
+      copied.addAndGet(read);
+      long progress = total.addAndGet(read);
+      synchronized (listener) {
+        listener.update(progress, length, false);
+      }
+    }
+  }
+
+  /**
+   * Records which ranges are on disk. The first lines identify the download; each following line
+   * holds the index of a completed range.
+   */
+  static final class Manifest {
+    private final File file;
+    private final BitSet complete;
+    private final BufferedSink sink;
+
+    private Manifest(File file, BitSet complete, BufferedSink sink) {
+      this.file = file;
+      this.complete = complete;
+      this.sink = sink;
+    }
+
+    static Manifest open(File file, HttpUrl url, long length, String validator, long rangeSize,
+        boolean downloadExists) throws IOException {
+      String header = url + "\n" + length + "\n" + validator + "\n" + rangeSize + "\n";
+      BitSet complete = new BitSet();
+
+      if (downloadExists && file.exists()) {
+        BufferedSource source = Okio.buffer(Okio.source(file));
+        try {
+          String existingHeader = source.readUtf8Line() + "\n" + source.readUtf8Line() + "\n"
+              + source.readUtf8Line() + "\n" + source.readUtf8Line() + "\n";
+          if (existingHeader.equals(header)) {
+            for (String line; (line = source.readUtf8Line()) != null; ) {
+              if (!line.isEmpty()) complete.set(Integer.parseInt(line));
+            }
+          }
+        } catch (NumberFormatException e) {
+          complete.clear(); // A torn last line from a crash; start over to be safe.
+        } finally {
+          Util.closeQuietly(source);
+        }
+      }
+
+      BufferedSink sink;
+      if (complete.isEmpty()) {
+        sink = Okio.buffer(Okio.sink(file));
+        sink.writeUtf8(header);
+        sink.flush();
+      } else {
+        sink = Okio.buffer(Okio.appendingSink(file));
+      }
+      return new Manifest(file, complete, sink);
+    }
+
+    synchronized boolean isComplete(int index) {
+      return complete.get(index);
+    }
+
+    synchronized void markComplete(int index) throws IOException {
+      complete.set(index);
+      sink.writeUtf8(Integer.toString(index)).writeByte('\n');
+      sink.flush();
+    }
+
+    synchronized void close() throws IOException {
+      sink.close();
+    }
+
+    void delete() {
+      file.delete();
+    }
+  }
+
+  public static void main(String... args) throws Exception {
+    if (args.length != 2) {
+      System.out.println("Usage: RangedDownload <url> <file>");
+      return;
+    }
+
+    ProgressListener progressListener = new ProgressDownload.CoalescingProgressListener(
+        new ProgressListener() {
+          @Override public void update(long bytesRead, long contentLength, boolean done) {
+            System.out.format("%d of %d bytes%s%n", bytesRead, contentLength, done ? ", done" : "");
+          }
+        }, 1024 * 1024, 500, TimeUnit.MILLISECONDS, null);
+
+    RangedDownload download = new RangedDownload(new OkHttpClient(), 4, 8 * 1024 * 1024);
+    download.download(HttpUrl.parse(args[0]), new File(args[1]), progressListener);
+  }
+}
@@ -20,16 +20,28 @@ import com.squareup.moshi.Moshi;
 import com.squareup.moshi.Types;
 import java.io.IOException;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
 import okhttp3.Interceptor;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.internal.http.HttpHeaders;
+import okio.Buffer;
 import okio.BufferedSink;
-import okio.GzipSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.ForwardingSink;
 import okio.Okio;
+import okio.Sink;
 
 public final class RequestBodyCompression {
   /**
@@ -42,7 +54,8 @@ public final class RequestBodyCompression {
   public static final MediaType MEDIA_TYPE_JSON = MediaType.parse("application/json");
 
   private final OkHttpClient client = new OkHttpClient.Builder()
-      .addInterceptor(new GzipRequestInterceptor())
+      .addInterceptor(new GzipRequestInterceptor().setMinimumBodySize(0))
+      .addInterceptor(new GunzipResponseInterceptor())
       .build();
   private final Moshi moshi = new Moshi.Builder().build();
   private final JsonAdapter<Map<String, String>> mapJsonAdapter = moshi.adapter(
@@ -63,28 +76,238 @@ public final class RequestBodyCompression {
 
       System.out.println(response.body().string());
     }
+    System.out.println(ZlibPool.DEFAULT);
   }
 
   public static void main(String... args) throws Exception {
     new RequestBodyCompression().run();
   }
 
-  /** This interceptor compresses the HTTP request body. Many webservers can't handle this! */
+  /**
+   * This interceptor compresses the HTTP request body. Many webservers can't handle this!
+   *
+   * <p>Bodies smaller than {@linkplain #setMinimumBodySize the minimum size} are sent untouched, as
+   * gzip's framing overhead outweighs its savings on tiny payloads. Larger bodies are compressed
+   * up front into an Okio buffer so the request carries an exact Content-Length, and retries replay
+   * the compressed bytes instead of calling {@link RequestBody#writeTo} again. If compression would
+   * make a buffered body larger it is sent uncompressed. Bodies too large to buffer are compressed
+   * as they are streamed, using chunked encoding.
+   *
+   * <p>Despite its name this interceptor isn't limited to gzip. The {@link Codec} for each call is
+   * chosen by host: an explicitly {@linkplain #setCodec configured} codec wins, then the first
+   * {@linkplain #addCodec registered} codec the host advertised in the {@code Accept-Encoding}
+   * header of an earlier response, then {@linkplain #setDefaultCodec the default} (gzip).
+   */
   static class GzipRequestInterceptor implements Interceptor {
+    /** Content types must compress to at most this fraction of their size to stay compressed. */
+    static final double ADAPTIVE_MAX_RATIO = 0.9;
+    /** The number of bodies sampled before a content type's ratio is trusted. */
+    static final int ADAPTIVE_MIN_SAMPLES = 16;
+    /**
+     * The weight of each new body in a content type's ratio. Older bodies decay by the rest, so a
+     * content type whose payloads start compressing well wins back compression after a few probes.
+     */
+    static final double ADAPTIVE_DECAY = 0.125;
+    /** A content type that compresses poorly is still compressed this often, to notice changes. */
+    static final int ADAPTIVE_REPROBE_INTERVAL = 64;
+    /**
+     * Uncompressed bytes per gzip member when compressing in parallel. Each member restarts the
+     * compression dictionary, so larger blocks compress better but need more memory in flight.
+     */
+    static final int PARALLEL_BLOCK_SIZE = 1024 * 1024;
+
+    private final ConcurrentHashMap<String, CompressionStats> statsByContentType =
+        new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Codec> configuredCodecs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Codec> negotiatedCodecs = new ConcurrentHashMap<>();
+    private final List<Codec> codecs = new CopyOnWriteArrayList<>();
+    private volatile Codec defaultCodec = GZIP;
+    private volatile long minimumBodySize = 1024;
+    private volatile long maximumBufferedSize = 1024 * 1024;
+    private volatile boolean adaptive;
+    private volatile ExecutorService compressionExecutor;
+    private volatile int compressionParallelism;
+
+    /** Bodies with a known length below {@code minimumBodySize} bytes are not compressed. */
+    public GzipRequestInterceptor setMinimumBodySize(long minimumBodySize) {
+      if (minimumBodySize < 0) throw new IllegalArgumentException("minimumBodySize < 0");
+      this.minimumBodySize = minimumBodySize;
+      return this;
+    }
+
+    /** Bodies with a known length above {@code maximumBufferedSize} bytes are streamed. */
+    public GzipRequestInterceptor setMaximumBufferedSize(long maximumBufferedSize) {
+      if (maximumBufferedSize < 0) throw new IllegalArgumentException("maximumBufferedSize < 0");
+      this.maximumBufferedSize = maximumBufferedSize;
+      return this;
+    }
+
+    /**
+     * Stop compressing bodies of a content type whose recent compression ratio is poor, such as
+     * already-compressed media. Poorly compressing types are re-sampled periodically, and resume
+     * compression if their bodies start compressing well.
+     */
+    public GzipRequestInterceptor setAdaptive(boolean adaptive) {
+      this.adaptive = adaptive;
+      return this;
+    }
+
+    /**
+     * Gzip bodies too large to buffer on {@code executor}, splitting them into blocks that are
+     * compressed concurrently and sent as consecutive gzip members. Pass null to compress on the
+     * calling thread.
+     *
+     * @param parallelism the number of threads in {@code executor} that may compress at once.
+     */
+    public GzipRequestInterceptor setCompressionExecutor(ExecutorService executor,
+        int parallelism) {
+      if (executor != null && parallelism <= 0) {
+        throw new IllegalArgumentException("parallelism <= 0");
+      }
+      this.compressionExecutor = executor;
+      this.compressionParallelism = parallelism;
+      return this;
+    }
+
+    /** Use {@code codec} for hosts with no configured or negotiated codec. */
+    public GzipRequestInterceptor setDefaultCodec(Codec codec) {
+      if (codec == null) throw new NullPointerException("codec == null");
+      this.defaultCodec = codec;
+      return this;
+    }
+
+    /** Always use {@code codec} for calls to {@code host}. */
+    public GzipRequestInterceptor setCodec(String host, Codec codec) {
+      if (host == null) throw new NullPointerException("host == null");
+      if (codec == null) throw new NullPointerException("codec == null");
+      configuredCodecs.put(host.toLowerCase(Locale.US), codec);
+      return this;
+    }
+
+    /**
+     * Offer {@code codec} for negotiation. Codecs registered earlier are preferred when a host
+     * accepts several.
+     */
+    public GzipRequestInterceptor addCodec(Codec codec) {
+      if (codec == null) throw new NullPointerException("codec == null");
+      codecs.add(codec);
+      return this;
+    }
+
     @Override public Response intercept(Chain chain) throws IOException {
       Request originalRequest = chain.request();
-      if (originalRequest.body() == null || originalRequest.header("Content-Encoding") != null) {
+      Response response = compressAndProceed(chain, originalRequest);
+      negotiate(originalRequest.url().host(), response.header("Accept-Encoding"));
+      return response;
+    }
+
+    private Response compressAndProceed(Chain chain, Request originalRequest) throws IOException {
+      RequestBody body = originalRequest.body();
+      if (body == null || originalRequest.header("Content-Encoding") != null) {
+        return chain.proceed(originalRequest);
+      }
+
+      long contentLength = body.contentLength();
+      if (contentLength != -1 && contentLength < minimumBodySize) {
         return chain.proceed(originalRequest);
       }
 
+      CompressionStats stats = adaptive ? stats(body.contentType()) : null;
+      if (stats != null && !stats.shouldCompress()) {
+        return chain.proceed(originalRequest);
+      }
+
+      Codec codec = codec(originalRequest.url().host());
+      RequestBody newBody;
+      if (contentLength == -1 || contentLength > maximumBufferedSize) {
+        newBody = compress(body, codec, stats);
+      } else {
+        Buffer uncompressed = new Buffer();
+        body.writeTo(uncompressed);
+        long uncompressedSize = uncompressed.size();
+        if (uncompressedSize < minimumBodySize) {
+          // The declared length was wrong; send what we buffered as-is.
+          return chain.proceed(originalRequest.newBuilder()
+              .method(originalRequest.method(),
+                  RequestBody.create(body.contentType(), uncompressed.readByteString()))
+              .build());
+        }
+
+        // Compress a copy that shares the uncompressed segments, in case the original is smaller.
+        Buffer input = new Buffer();
+        uncompressed.copyTo(input, 0, uncompressedSize);
+        Buffer compressed = new Buffer();
+        Sink compressingSink = codec.compress(compressed);
+        compressingSink.write(input, uncompressedSize);
+        compressingSink.close();
+        if (stats != null) stats.record(uncompressedSize, compressed.size());
+
+        if (compressed.size() >= uncompressedSize) {
+          // Incompressible input grows by the codec's framing; send the original bytes instead.
+          compressed.clear();
+          return chain.proceed(originalRequest.newBuilder()
+              .method(originalRequest.method(),
+                  RequestBody.create(body.contentType(), uncompressed.readByteString()))
+              .build());
+        }
+
+        // Take an immutable snapshot: the buffer's segments go back to Okio's pool and the
+        // request body can be replayed on retries and redirects.
+        newBody = RequestBody.create(body.contentType(), compressed.readByteString());
+      }
+
       Request compressedRequest = originalRequest.newBuilder()
-          .header("Content-Encoding", "gzip")
-          .method(originalRequest.method(), gzip(originalRequest.body()))
+          .header("Content-Encoding", codec.encoding())
+          .method(originalRequest.method(), newBody)
           .build();
       return chain.proceed(compressedRequest);
     }
 
-    private RequestBody gzip(final RequestBody body) {
+    private CompressionStats stats(MediaType contentType) {
+      String key = contentType != null ? contentType.type() + '/' + contentType.subtype() : "";
+      CompressionStats stats = statsByContentType.get(key);
+      if (stats == null) {
+        CompressionStats newStats = new CompressionStats();
+        stats = statsByContentType.putIfAbsent(key, newStats);
+        if (stats == null) stats = newStats;
+      }
+      return stats;
+    }
+
+    private Codec codec(String host) {
+      Codec codec = configuredCodecs.get(host);
+      if (codec == null) codec = negotiatedCodecs.get(host);
+      return codec != null ? codec : defaultCodec;
+    }
+
+    /** Remembers the most preferred registered codec that {@code acceptEncoding} lists. */
+    private void negotiate(String host, String acceptEncoding) {
+      if (acceptEncoding == null || codecs.isEmpty()) return;
+      for (Codec codec : codecs) {
+        if (acceptsEncoding(acceptEncoding, codec.encoding())) {
+          negotiatedCodecs.put(host, codec);
+          return;
+        }
+      }
+    }
+
+    /** Returns true if the comma-separated {@code acceptEncoding} list has {@code encoding}. */
+    static boolean acceptsEncoding(String acceptEncoding, String encoding) {
+      for (String element : acceptEncoding.split(",")) {
+        int semicolon = element.indexOf(';');
+        String coding = (semicolon != -1 ? element.substring(0, semicolon) : element).trim();
+        if (!coding.equalsIgnoreCase(encoding)) continue;
+        // Reject "gzip;q=0", which explicitly forbids the coding.
+        return semicolon == -1 || !element.substring(semicolon + 1).trim().matches("q=0(\\.0*)?");
+      }
+      return false;
+    }
+
+    /** Returns a body that compresses {@code body} as it streams, recording into {@code stats}. */
+    private RequestBody compress(final RequestBody body, final Codec codec,
+        final CompressionStats stats) {
+      final ExecutorService executor = codec == GZIP ? compressionExecutor : null;
+      final int parallelism = compressionParallelism;
       return new RequestBody() {
         @Override public MediaType contentType() {
           return body.contentType();
@@ -95,11 +318,175 @@ public final class RequestBodyCompression {
         }
 
         @Override public void writeTo(BufferedSink sink) throws IOException {
-          BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
-          body.writeTo(gzipSink);
-          gzipSink.close();
+          CountingSink compressed = new CountingSink(sink);
+          Sink compressor = executor != null
+              ? new ParallelGzipSink(compressed, executor, ZlibPool.DEFAULT,
+                  Deflater.DEFAULT_COMPRESSION, PARALLEL_BLOCK_SIZE, parallelism * 2)
+              : codec.compress(compressed);
+          CountingSink uncompressed = new CountingSink(compressor);
+          BufferedSink compressingSink = Okio.buffer(uncompressed);
+          boolean success = false;
+          try {
+            body.writeTo(compressingSink);
+            compressingSink.close();
+            success = true;
+          } finally {
+            if (!success) abort(compressor);
+          }
+          if (stats != null) stats.record(uncompressed.byteCount, compressed.byteCount);
         }
       };
     }
   }
+
+  /**
+   * Releases the deflaters held by {@code compressor} without finishing its stream. Closing it
+   * instead would end the stream and close the network sink, so a failed body would look complete.
+   */
+  static void abort(Sink compressor) {
+    if (compressor instanceof ParallelGzipSink) {
+      ((ParallelGzipSink) compressor).abort();
+    } else if (compressor instanceof ZlibPool.DeflateStreamSink) {
+      ((ZlibPool.DeflateStreamSink) compressor).abort();
+    }
+  }
+
+  /** Counts the bytes written through it. */
+  static final class CountingSink extends ForwardingSink {
+    long byteCount;
+
+    CountingSink(Sink delegate) {
+      super(delegate);
+    }
+
+    @Override public void write(Buffer source, long byteCount) throws IOException {
+      super.write(source, byteCount);
+      this.byteCount += byteCount;
+    }
+  }
+
+  /** A request body compression scheme, identified by its {@code Content-Encoding} token. */
+  public interface Codec {
+    /** The {@code Content-Encoding} value for bodies compressed by this codec. */
+    String encoding();
+
+    /** Returns a sink that compresses into {@code sink}. Closing it closes {@code sink}. */
+    Sink compress(Sink sink) throws IOException;
+  }
+
+  public static final Codec GZIP = new Codec() {
+    @Override public String encoding() {
+      return "gzip";
+    }
+
+    @Override public Sink compress(Sink sink) {
+      return ZlibPool.DEFAULT.gzip(sink, Deflater.DEFAULT_COMPRESSION);
+    }
+  };
+
+  public static final Codec DEFLATE = new DeflateCodec(Deflater.DEFAULT_COMPRESSION, null);
+
+  /**
+   * The {@code deflate} content coding: a zlib stream. A preset dictionary of byte strings common
+   * in the payloads (field names, boilerplate values) helps small, repetitive bodies compress
+   * well. The receiver must load the same dictionary; it identifies it by the Adler-32 checksum
+   * that zlib writes into the stream header.
+   *
+   * <p>Codings like zstd or brotli, which need native libraries that this sample doesn't depend
+   * on, can be supported by implementing {@link Codec} over their sinks.
+   */
+  public static final class DeflateCodec implements Codec {
+    private final ZlibPool pool;
+    private final int level;
+    private final byte[] dictionary;
+
+    public DeflateCodec(int level, ByteString dictionary) {
+      this(ZlibPool.DEFAULT, level, dictionary);
+    }
+
+    /**
+     * @param pool the pool to borrow deflaters from.
+     * @param level a {@link Deflater} compression level.
+     * @param dictionary a preset dictionary, or null for none.
+     */
+    public DeflateCodec(ZlibPool pool, int level, ByteString dictionary) {
+      if (pool == null) throw new NullPointerException("pool == null");
+      if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+        throw new IllegalArgumentException("unexpected level: " + level);
+      }
+      this.pool = pool;
+      this.level = level;
+      this.dictionary = dictionary != null ? dictionary.toByteArray() : null;
+    }
+
+    @Override public String encoding() {
+      return "deflate";
+    }
+
+    @Override public Sink compress(Sink sink) {
+      return pool.deflate(sink, level, dictionary);
+    }
+  }
+
+  /**
+   * This interceptor asks for gzipped responses and decompresses them with a pooled inflater.
+   * OkHttp does this transparently already, but with a new {@code Inflater} for every response.
+   * Requests that set their own {@code Accept-Encoding} are left alone.
+   */
+  static class GunzipResponseInterceptor implements Interceptor {
+    private final ZlibPool pool;
+
+    GunzipResponseInterceptor() {
+      this(ZlibPool.DEFAULT);
+    }
+
+    GunzipResponseInterceptor(ZlibPool pool) {
+      this.pool = pool;
+    }
+
+    @Override public Response intercept(Chain chain) throws IOException {
+      Request request = chain.request();
+      if (request.header("Accept-Encoding") != null || request.header("Range") != null) {
+        return chain.proceed(request);
+      }
+
+      Response response = chain.proceed(request.newBuilder()
+          .header("Accept-Encoding", "gzip")
+          .build());
+      if (!"gzip".equalsIgnoreCase(response.header("Content-Encoding"))
+          || !HttpHeaders.hasBody(response)) {
+        return response;
+      }
+
+      ResponseBody body = response.body();
+      BufferedSource gunzipped = Okio.buffer(pool.gunzip(body.source()));
+      return response.newBuilder()
+          .removeHeader("Content-Encoding")
+          .removeHeader("Content-Length")
+          .body(ResponseBody.create(body.contentType(), -1L, gunzipped))
+          .build();
+    }
+  }
+
+  /** A decaying average of one content type's compression ratio. */
+  static final class CompressionStats {
+    private double ratio;
+    private int samples;
+    private int skipped;
+
+    synchronized void record(long uncompressedSize, long compressedSize) {
+      if (uncompressedSize == 0) return;
+      double sample = (double) compressedSize / uncompressedSize;
+      samples++;
+      ratio = samples == 1
+          ? sample
+          : ratio + GzipRequestInterceptor.ADAPTIVE_DECAY * (sample - ratio);
+    }
+
+    synchronized boolean shouldCompress() {
+      if (samples < GzipRequestInterceptor.ADAPTIVE_MIN_SAMPLES) return true;
+      if (ratio <= GzipRequestInterceptor.ADAPTIVE_MAX_RATIO) return true;
+      return ++skipped % GzipRequestInterceptor.ADAPTIVE_REPROBE_INTERVAL == 0;
+    }
+  }
 }
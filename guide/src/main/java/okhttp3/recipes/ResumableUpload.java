@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.recipes.ProgressUpload.FileRegionRequestBody;
+import okhttp3.recipes.ProgressUpload.ProgressListener;
+
+/**
+ * Uploads a large file in chunks to a resumable upload session, the protocol used by Google Cloud
+ * Storage and Google Drive. The session is created with a {@code POST} whose {@code Location}
+ * response header names it; each chunk is then {@code PUT} with a {@code Content-Range} header.
+ * The server answers {@code 308 Resume Incomplete} with a {@code Range} header acknowledging the
+ * bytes it has persisted, and {@code 200} or {@code 201} once the whole file has arrived.
+ *
+ * <p>Uploads continue from the last acknowledged offset, not from the end of the last chunk sent.
+ * After a failure the server is asked for its offset before resuming, and a session URL saved by
+ * the caller can resume an upload that was interrupted in another process.
+ */
+public final class ResumableUpload {
+  private static final Pattern RANGE = Pattern.compile("bytes=0-(\\d+)");
+  private static final int MAX_ATTEMPTS_WITHOUT_PROGRESS = 5;
+
+  private final OkHttpClient client;
+  private final long chunkSize;
+
+  /**
+   * @param chunkSize bytes per request. Some servers require a multiple of 256 KiB; larger chunks
+   *     mean fewer round trips but more data to resend after a failure.
+   */
+  public ResumableUpload(OkHttpClient client, long chunkSize) {
+    if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize <= 0");
+    this.client = client;
+    this.chunkSize = chunkSize;
+  }
+
+  /** Starts a session to upload {@code length} bytes and returns its URL. */
+  public HttpUrl start(HttpUrl url, MediaType contentType, long length) throws IOException {
+    Request request = new Request.Builder()
+        .url(url)
+        .header("X-Upload-Content-Type", contentType.toString())
+        .header("X-Upload-Content-Length", Long.toString(length))
+        .post(RequestBody.create(null, new byte[0]))
+        .build();
+
+    Response response = client.newCall(request).execute();
+    try {
+      if (!response.isSuccessful()) throw new IOException("Unexpected code " + response);
+      String location = response.header("Location");
+      HttpUrl session = location != null ? url.resolve(location) : null;
+      if (session == null) throw new IOException("No session Location: " + response);
+      return session;
+    } finally {
+      response.close();
+    }
+  }
+
+  /**
+   * Uploads {@code file} to {@code session}, starting wherever the server left off. Returns the
+   * final response, which the caller must close.
+   */
+  public Response upload(HttpUrl session, File file, MediaType contentType,
+      ProgressListener listener) throws IOException {
+    long length = file.length();
+    long offset = -1L; // Unknown until the server is asked.
+    int attemptsWithoutProgress = 0;
+
+    while (true) {
+      Response response;
+      try {
+        if (offset == -1L) offset = queryOffset(session, length);
+        long byteCount = Math.min(chunkSize, length - offset);
+        response = putChunk(session, file, contentType, offset, byteCount, length, listener);
+      } catch (IOException e) {
+        // Either the chunk or the offset query failed; both need the offset asked for again.
+        if (++attemptsWithoutProgress >= MAX_ATTEMPTS_WITHOUT_PROGRESS) throw e;
+        backOff(attemptsWithoutProgress);
+        offset = -1L;
+        continue;
+      }
+
+      if (response.isSuccessful()) {
+        return response; // Upload complete.
+      }
+
+      try {
+        if (response.code() == 308) {
+          long acknowledged = acknowledgedOffset(response);
+          attemptsWithoutProgress = acknowledged > offset ? 0 : attemptsWithoutProgress + 1;
+          offset = acknowledged;
+        } else if (response.code() >= 500) {
+          attemptsWithoutProgress++;
+          offset = -1L;
+        } else {
+          throw new IOException("Unexpected code " + response);
+        }
+      } finally {
+        response.close();
+      }
+      if (attemptsWithoutProgress >= MAX_ATTEMPTS_WITHOUT_PROGRESS) {
+        throw new IOException("Upload of " + length + " bytes stalled after "
+            + attemptsWithoutProgress + " attempts without progress");
+      }
+      if (attemptsWithoutProgress > 0) backOff(attemptsWithoutProgress);
+    }
+  }
+
+  private Response putChunk(HttpUrl session, File file, MediaType contentType, long offset,
+      long byteCount, long length, ProgressListener listener) throws IOException {
+    String contentRange = byteCount > 0
+        ? "bytes " + offset + "-" + (offset + byteCount - 1) + "/" + length
+        : "bytes */" + length;
+    Request request = new Request.Builder()
+        .url(session)
+        .header("Content-Range", contentRange)
+        .put(new FileRegionRequestBody(contentType, file, offset, byteCount, listener, length))
+        .build();
+    return client.newCall(request).execute();
+  }
+
+  /** Asks the server how many bytes of the upload it has persisted. */
+  long queryOffset(HttpUrl session, long length) throws IOException {
+    Request request = new Request.Builder()
+        .url(session)
+        .header("Content-Range", "bytes */" + length)
+        .put(RequestBody.create(null, new byte[0]))
+        .build();
+
+    Response response = client.newCall(request).execute();
+    try {
+      if (response.isSuccessful()) return length; // Already complete.
+      if (response.code() != 308) throw new IOException("Unexpected code " + response);
+      return acknowledgedOffset(response);
+    } finally {
+      response.close();
+    }
+  }
+
+  /** Returns the offset following the acknowledged range, or 0 if nothing has been received. */
+  private static long acknowledgedOffset(Response response) throws IOException {
+    String range = response.header("Range");
+    if (range == null) return 0L;
+    Matcher matcher = RANGE.matcher(range);
+    if (!matcher.matches()) throw new IOException("Unexpected Range: " + range);
+    return Long.parseLong(matcher.group(1)) + 1;
+  }
+
+  private static void backOff(int attempt) throws IOException {
+    try {
+      Thread.sleep(500L << Math.min(attempt, 6));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted; upload can be resumed");
+    }
+  }
+
+  public static void main(String... args) throws Exception {
+    if (args.length != 2) {
+      System.out.println("Usage: ResumableUpload <url> <file>");
+      return;
+    }
+
+    File file = new File(args[1]);
+    MediaType contentType = MediaType.parse("application/octet-stream");
+    ResumableUpload upload = new ResumableUpload(new OkHttpClient(), 8 * 1024 * 1024);
+
+    HttpUrl session = upload.start(HttpUrl.parse(args[0]), contentType, file.length());
+    System.out.println("Session: " + session);
+    Response response = upload.upload(session, file, contentType, new ProgressListener() {
+      long lastPercent = -1;
+
+      @Override public void update(long bytesRead, long contentLength, boolean done) {
+        long percent = contentLength > 0 ? (100 * bytesRead) / contentLength : 100;
+        if (percent != lastPercent) {
+          lastPercent = percent;
+          System.out.format("%d%% uploaded%n", percent);
+        }
+      }
+    });
+    try {
+      System.out.println(response.body().string());
+    } finally {
+      response.close();
+    }
+  }
+}
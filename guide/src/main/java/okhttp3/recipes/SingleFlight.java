@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.CacheControl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okhttp3.internal.Util;
+import okhttp3.internal.http.HttpHeaders;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Collapses identical concurrent {@code GET} and {@code HEAD} requests into one. The first caller
+ * for a URL leads: its request goes to the network. Callers that arrive while it's in flight
+ * follow: they wait for the leader's response and each get their own copy of its body, so every
+ * caller can read and close its response independently.
+ *
+ * <p>Requests only share a flight if they carry the same credentials ({@code Authorization},
+ * {@code Proxy-Authorization} and {@code Cookie}), so one user never sees another's response. A
+ * follower only shares the leader's response if the headers named by the response's {@code Vary}
+ * header have the same values in both requests; otherwise it makes its own call. It also makes its
+ * own call if the leader fails, if the response is {@code no-store} or {@code private}, or if the
+ * body is too large to buffer for sharing.
+ *
+ * <p>Install as an application interceptor, so it sits in front of the cache and followers don't
+ * each consult it.
+ */
+public final class SingleFlight implements Interceptor {
+  /** Request headers that identify the caller. Requests that differ in these never share. */
+  private static final String[] CREDENTIAL_HEADERS = {
+      "Authorization", "Proxy-Authorization", "Cookie"
+  };
+
+  private final long maxSharedBodySize;
+  private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+  private final AtomicInteger sharedCount = new AtomicInteger();
+  private final AtomicInteger waitingCount = new AtomicInteger();
+
+  /** @param maxSharedBodySize the largest body that followers will be given copies of. */
+  public SingleFlight(long maxSharedBodySize) {
+    if (maxSharedBodySize < 0) throw new IllegalArgumentException("maxSharedBodySize < 0");
+    this.maxSharedBodySize = maxSharedBodySize;
+  }
+
+  /** Returns the number of calls that were answered with another call's response. */
+  public int sharedCount() {
+    return sharedCount.get();
+  }
+
+  /** Returns the number of calls currently waiting for an identical call. Visible for testing. */
+  int waitingCount() {
+    return waitingCount.get();
+  }
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    if (!request.method().equals("GET") && !request.method().equals("HEAD")) {
+      return chain.proceed(request);
+    }
+
+    String key = key(request);
+    Flight flight = new Flight(request);
+    Flight leader = flights.putIfAbsent(key, flight);
+    if (leader != null) {
+      return follow(chain, request, leader);
+    }
+
+    try {
+      return lead(chain, request, flight);
+    } finally {
+      flights.remove(key, flight);
+      flight.done.countDown();
+    }
+  }
+
+  static String key(Request request) {
+    StringBuilder key = new StringBuilder()
+        .append(request.method())
+        .append(' ')
+        .append(request.url());
+    for (String name : CREDENTIAL_HEADERS) {
+      for (String value : request.headers(name)) {
+        key.append('\n').append(name).append(": ").append(value);
+      }
+    }
+    return key.toString();
+  }
+
+  private Response lead(Chain chain, Request request, Flight flight) throws IOException {
+    Response response = chain.proceed(request);
+    CacheControl cacheControl = response.cacheControl();
+    if (cacheControl.noStore() || cacheControl.isPrivate()) {
+      return response; // Not for sharing; followers make their own calls.
+    }
+    if (!HttpHeaders.hasBody(response)) {
+      flight.share(response, ByteString.EMPTY);
+      return response;
+    }
+
+    // Buffer up to the limit. If the body fits, share it; otherwise stitch the buffered prefix
+    // back onto the rest of the stream for the leader alone.
+    ResponseBody body = response.body();
+    final BufferedSource source = body.source();
+    final Buffer prefix = new Buffer();
+    boolean exhausted = false;
+    try {
+      while (prefix.size() <= maxSharedBodySize) {
+        if (source.read(prefix, 8192) == -1) {
+          exhausted = true;
+          break;
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      Util.closeQuietly(body); // Release the connection; followers will make their own calls.
+      throw e;
+    }
+
+    if (exhausted) {
+      ByteString bytes = prefix.readByteString();
+      body.close();
+      flight.share(response, bytes);
+      return flight.copy(request);
+    }
+
+    BufferedSource rest = Okio.buffer(new ForwardingSource(source) {
+      @Override public long read(Buffer sink, long byteCount) throws IOException {
+        if (prefix.size() > 0) return prefix.read(sink, byteCount);
+        return super.read(sink, byteCount);
+      }
+    });
+    return response.newBuilder()
+        .body(ResponseBody.create(body.contentType(), body.contentLength(), rest))
+        .build();
+  }
+
+  private Response follow(Chain chain, Request request, Flight leader) throws IOException {
+    waitingCount.incrementAndGet();
+    try {
+      leader.done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted waiting for identical call");
+    } finally {
+      waitingCount.decrementAndGet();
+    }
+
+    if (leader.response == null || !leader.varyMatches(request)) {
+      return chain.proceed(request);
+    }
+    sharedCount.incrementAndGet();
+    return leader.copy(request);
+  }
+
+  static final class Flight {
+    final Request request;
+    final CountDownLatch done = new CountDownLatch(1);
+
+    /** The leader's response without its body, or null if it isn't shareable. */
+    volatile Response response;
+    volatile MediaType contentType;
+    volatile ByteString body;
+
+    Flight(Request request) {
+      this.request = request;
+    }
+
+    void share(Response response, ByteString body) {
+      ResponseBody responseBody = response.body();
+      this.contentType = responseBody != null ? responseBody.contentType() : null;
+      this.body = body;
+      this.response = response.newBuilder().body(null).build();
+    }
+
+    /** Returns a new response with its own body for {@code request}. */
+    Response copy(Request request) {
+      return response.newBuilder()
+          .request(request)
+          .body(ResponseBody.create(contentType, body.toByteArray()))
+          .build();
+    }
+
+    boolean varyMatches(Request other) {
+      if (HttpHeaders.hasVaryAll(response)) return false;
+      for (String field : HttpHeaders.varyFields(response.headers())) {
+        if (!request.headers(field).equals(other.headers(field))) return false;
+      }
+      return true;
+    }
+  }
+
+  public static void main(String... args) throws Exception {
+    final SingleFlight singleFlight = new SingleFlight(1024 * 1024);
+    final OkHttpClient client = new OkHttpClient.Builder()
+        .addInterceptor(singleFlight)
+        .build();
+    final Request request = new Request.Builder()
+        .url("http://publicobject.com/helloworld.txt")
+        .build();
+
+    // A stampede: many threads fetch the same URL at once.
+    ExecutorService executor = Executors.newFixedThreadPool(16);
+    for (int i = 0; i < 16; i++) {
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          try (Response response = client.newCall(request).execute()) {
+            response.body().string();
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.MINUTES);
+    System.out.println("16 calls, " + singleFlight.sharedCount() + " answered by another call");
+  }
+}
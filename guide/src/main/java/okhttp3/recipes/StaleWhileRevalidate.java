@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Cache;
+import okhttp3.CacheControl;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.internal.cache.CacheStrategy;
+import okhttp3.internal.http.HttpHeaders;
+import okio.Buffer;
+import okio.BufferedSource;
+
+/**
+ * Honors the {@code stale-while-revalidate} and {@code stale-if-error} response directives of RFC
+ * 5861, which OkHttp's cache ignores.
+ *
+ * <p>When a cached response has expired but is still inside its {@code stale-while-revalidate}
+ * window, it is returned immediately and refreshed in the background with {@link Call#enqueue}.
+ * Concurrent callers that find the same stale entry share one refresh. The refresh goes through
+ * the cache like any call, so it's a conditional request when the entry has a validator.
+ *
+ * <p>When a stale response is outside that window, the call goes to the network as usual; but if
+ * the network fails or returns a server error while the entry is inside its {@code
+ * stale-if-error} window, the stale response is returned instead of the error.
+ *
+ * <p>Install with {@link #install}, which needs the finished client to issue refreshes. Calls
+ * fail with an {@link IllegalStateException} if the interceptor was added some other way.
+ */
+public final class StaleWhileRevalidate implements Interceptor {
+  private static final CacheControl CACHE_ONLY = new CacheControl.Builder()
+      .onlyIfCached()
+      .maxStale(Integer.MAX_VALUE, TimeUnit.SECONDS)
+      .build();
+
+  /** Refreshes are tagged so they skip this interceptor instead of being served stale. */
+  private static final Object REFRESH_TAG = new Object();
+
+  private final ConcurrentMap<String, Boolean> refreshing = new ConcurrentHashMap<>();
+  private volatile OkHttpClient client;
+
+  /** Adds this interceptor to {@code builder} and returns the client to make calls with. */
+  public OkHttpClient install(OkHttpClient.Builder builder) {
+    if (client != null) throw new IllegalStateException("already installed");
+    client = builder.addInterceptor(this).build();
+    return client;
+  }
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    if (client == null) {
+      throw new IllegalStateException("Add StaleWhileRevalidate with install(), not directly");
+    }
+
+    Request request = chain.request();
+    if (!request.method().equals("GET")
+        || request.tag() == REFRESH_TAG
+        || request.cacheControl().noCache()
+        || request.cacheControl().onlyIfCached()) {
+      return chain.proceed(request);
+    }
+
+    Response cached = chain.proceed(request.newBuilder().cacheControl(CACHE_ONLY).build());
+    if (cached.cacheResponse() == null) {
+      cached.close();
+      return chain.proceed(request); // Nothing cached.
+    }
+
+    long now = System.currentTimeMillis();
+    if (isServable(now, request, cached, 0)) {
+      return cached.newBuilder().request(request).build(); // Fresh.
+    }
+
+    if (isServable(now, request, cached, directive(cached, "stale-while-revalidate"))) {
+      refresh(request);
+      return cached.newBuilder().request(request).build();
+    }
+
+    int staleIfError = directive(cached, "stale-if-error");
+    cached.close();
+    if (staleIfError <= 0) return chain.proceed(request);
+
+    Response network;
+    try {
+      network = chain.proceed(request);
+    } catch (IOException e) {
+      Response stale = staleIfError(chain, request, staleIfError);
+      if (stale == null) throw e;
+      return stale;
+    }
+    if (network.code() < 500) return network;
+
+    Response stale = staleIfError(chain, request, staleIfError);
+    if (stale == null) return network;
+    network.close();
+    return stale;
+  }
+
+  /** Returns the cached response if it's within {@code staleIfError} seconds of expiring. */
+  private Response staleIfError(Chain chain, Request request, int staleIfError)
+      throws IOException {
+    Response cached = chain.proceed(request.newBuilder().cacheControl(CACHE_ONLY).build());
+    if (cached.cacheResponse() == null
+        || !isServable(System.currentTimeMillis(), request, cached, staleIfError)) {
+      cached.close();
+      return null;
+    }
+    return cached.newBuilder()
+        .request(request)
+        .addHeader("Warning", "111 HttpURLConnection \"Revalidation failed\"")
+        .build();
+  }
+
+  /**
+   * Returns true if {@code cached} may be served for {@code request} when at most {@code
+   * maxStaleSeconds} stale, or more if the request's own {@code max-stale} allows it. The request's
+   * {@code max-age} and {@code min-fresh} still apply. This uses OkHttp's own freshness
+   * calculation.
+   */
+  private static boolean isServable(long now, Request request, Response cached,
+      int maxStaleSeconds) {
+    if (maxStaleSeconds < 0) return false;
+    CacheControl requested = request.cacheControl();
+    CacheControl.Builder cacheControl = new CacheControl.Builder()
+        .maxStale(Math.max(maxStaleSeconds, requested.maxStaleSeconds()), TimeUnit.SECONDS);
+    if (requested.maxAgeSeconds() != -1) {
+      cacheControl.maxAge(requested.maxAgeSeconds(), TimeUnit.SECONDS);
+    }
+    if (requested.minFreshSeconds() != -1) {
+      cacheControl.minFresh(requested.minFreshSeconds(), TimeUnit.SECONDS);
+    }
+    Request withMaxStale = request.newBuilder()
+        .cacheControl(cacheControl.build())
+        .build();
+    CacheStrategy strategy = new CacheStrategy.Factory(now, withMaxStale, cached).get();
+    return strategy.networkRequest == null && strategy.cacheResponse != null;
+  }
+
+  /** Returns the value of the {@code Cache-Control} extension {@code name}, or -1. */
+  static int directive(Response response, String name) {
+    for (String value : response.headers("Cache-Control")) {
+      int start = 0;
+      while (start < value.length()) {
+        int end = value.indexOf(',', start);
+        if (end == -1) end = value.length();
+        int equals = value.indexOf('=', start);
+        if (equals != -1 && equals < end
+            && value.substring(start, equals).trim().equalsIgnoreCase(name)) {
+          return HttpHeaders.parseSeconds(value.substring(equals + 1, end).trim(), -1);
+        }
+        start = end + 1;
+      }
+    }
+    return -1;
+  }
+
+  private void refresh(final Request request) {
+    final String key = request.url().toString();
+    if (refreshing.putIfAbsent(key, Boolean.TRUE) != null) return; // Already refreshing.
+
+    Request refresh = request.newBuilder()
+        .cacheControl(new CacheControl.Builder().maxAge(0, TimeUnit.SECONDS).build())
+        .tag(REFRESH_TAG)
+        .build();
+    client.newCall(refresh).enqueue(new Callback() {
+      @Override public void onFailure(Call call, IOException e) {
+        refreshing.remove(key);
+      }
+
+      @Override public void onResponse(Call call, Response response) throws IOException {
+        try {
+          // The cache only commits a new entry once its body has been read to the end.
+          BufferedSource source = response.body().source();
+          Buffer discard = new Buffer();
+          while (source.read(discard, 8192) != -1) {
+            discard.clear();
+          }
+        } finally {
+          response.close();
+          refreshing.remove(key);
+        }
+      }
+    });
+  }
+
+  public static void main(String... args) throws Exception {
+    OkHttpClient client = new StaleWhileRevalidate().install(new OkHttpClient.Builder()
+        .cache(new Cache(new File("StaleWhileRevalidate.tmp"), 10 * 1024 * 1024)));
+
+    Request request = new Request.Builder()
+        .url("http://publicobject.com/helloworld.txt")
+        .build();
+
+    for (int i = 0; i < 3; i++) {
+      long start = System.nanoTime();
+      try (Response response = client.newCall(request).execute()) {
+        response.body().string();
+        System.out.format("%s in %d ms: cache=%s network=%s%n", response,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+            response.cacheResponse() != null, response.networkResponse() != null);
+      }
+    }
+  }
+}
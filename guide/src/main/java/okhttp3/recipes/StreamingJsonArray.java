@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.recipes.ParseResponseWithMoshi.Gist;
+import okhttp3.recipes.ParseResponseWithMoshi.GistFile;
+import okhttp3.recipes.ParseResponseWithMoshi.GistFileJsonAdapter;
+import okhttp3.recipes.ParseResponseWithMoshi.GistJsonAdapter;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+
+/**
+ * Decodes a response whose body is one large JSON array an element at a time, instead of building
+ * a {@code List} of every element with {@link JsonAdapter#fromJson(BufferedSource)}. Memory use
+ * is bounded by the largest element (or batch) rather than the length of the array.
+ *
+ * <p>Elements can be handed to a consumer on the reading thread, or in batches to a parallel
+ * stage. The parallel stage applies backpressure: once {@code maxInFlight} batches are waiting or
+ * being processed, the reader stops reading, so a slow consumer slows the download rather than
+ * filling the heap.
+ */
+public final class StreamingJsonArray {
+  /** Receives elements one at a time on the reading thread. */
+  public interface ElementConsumer<T> {
+    void accept(T element) throws IOException;
+  }
+
+  /** Receives batches of elements on the executor's threads. */
+  public interface BatchConsumer<T> {
+    void accept(List<T> batch) throws IOException;
+  }
+
+  /**
+   * Decodes each element of the JSON array in {@code source} with {@code adapter} and passes it to
+   * {@code consumer}. Returns the number of elements.
+   */
+  public static <T> long forEach(BufferedSource source, JsonAdapter<T> adapter,
+      ElementConsumer<? super T> consumer) throws IOException {
+    JsonReader reader = JsonReader.of(source);
+    long count = 0L;
+    reader.beginArray();
+    while (reader.hasNext()) {
+      consumer.accept(adapter.fromJson(reader));
+      count++;
+    }
+    reader.endArray();
+    return count;
+  }
+
+  /**
+   * Decodes the JSON array in {@code source} into batches of {@code batchSize} elements, and passes
+   * them to {@code consumer} on {@code executor}. At most {@code maxInFlight} batches are queued or
+   * in progress at once; reading waits for one to finish before starting another. Returns the
+   * number of elements once every batch has been consumed.
+   *
+   * <p>If the consumer throws, reading stops and the exception is rethrown. If reading fails,
+   * batches that haven't started are skipped and those in progress are awaited before the
+   * exception is rethrown, so no batch is consumed after this returns.
+   */
+  public static <T> long forEachBatch(BufferedSource source, JsonAdapter<T> adapter,
+      int batchSize, int maxInFlight, Executor executor, final BatchConsumer<T> consumer)
+      throws IOException {
+    if (batchSize <= 0) throw new IllegalArgumentException("batchSize <= 0");
+    if (maxInFlight <= 0) throw new IllegalArgumentException("maxInFlight <= 0");
+
+    final Semaphore inFlight = new Semaphore(maxInFlight);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    JsonReader reader = JsonReader.of(source);
+    long count = 0L;
+
+    boolean done = false;
+    try {
+      reader.beginArray();
+      List<T> batch = new ArrayList<>(batchSize);
+      while (reader.hasNext() && failure.get() == null) {
+        batch.add(adapter.fromJson(reader));
+        count++;
+        if (batch.size() == batchSize || !reader.hasNext()) {
+          submit(batch, inFlight, failure, executor, consumer);
+          batch = new ArrayList<>(batchSize);
+        }
+      }
+      if (failure.get() == null) reader.endArray();
+
+      inFlight.acquire(maxInFlight); // Wait for the last batches.
+      inFlight.release(maxInFlight);
+      done = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted waiting for batches");
+    } finally {
+      if (!done) {
+        // Skip the batches that haven't started and wait out the rest.
+        failure.compareAndSet(null, new CancellationException("reading failed"));
+        inFlight.acquireUninterruptibly(maxInFlight);
+        inFlight.release(maxInFlight);
+      }
+    }
+
+    Throwable t = failure.get();
+    if (t instanceof IOException) throw (IOException) t;
+    if (t instanceof RuntimeException) throw (RuntimeException) t;
+    if (t instanceof Error) throw (Error) t;
+    return count;
+  }
+
+  private static <T> void submit(final List<T> batch, final Semaphore inFlight,
+      final AtomicReference<Throwable> failure, Executor executor,
+      final BatchConsumer<T> consumer) throws InterruptedException {
+    inFlight.acquire();
+    try {
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          try {
+            if (failure.get() == null) consumer.accept(batch);
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          } finally {
+            inFlight.release();
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      inFlight.release(); // Rejected.
+      throw e;
+    }
+  }
+
+  /** Generates a JSON array of {@code count} one-file gists as it's read, without holding it. */
+  static final class GistsSource implements Source {
+    private final long count;
+    private long index = -1L;
+
+    GistsSource(long count) {
+      this.count = count;
+    }
+
+    @Override public long read(Buffer sink, long byteCount) {
+      if (index > count) return -1L;
+      long start = sink.size();
+      while (index <= count && sink.size() - start < byteCount) {
+        if (index == -1L) {
+          sink.writeUtf8("[");
+        } else if (index == count) {
+          sink.writeUtf8("]");
+        } else {
+          if (index > 0) sink.writeUtf8(",");
+          sink.writeUtf8("{\"files\":{\"File")
+              .writeDecimalLong(index)
+              .writeUtf8(".java\":{\"content\":\"class File")
+              .writeDecimalLong(index)
+              .writeUtf8(" {}\"}}}");
+        }
+        index++;
+      }
+      return sink.size() - start;
+    }
+
+    @Override public Timeout timeout() {
+      return Timeout.NONE;
+    }
+
+    @Override public void close() {
+    }
+  }
+
+  public static void main(String... args) throws Exception {
+    JsonAdapter<Gist> adapter = new GistJsonAdapter(new GistFileJsonAdapter());
+
+    // One element at a time, from the network.
+    OkHttpClient client = new OkHttpClient();
+    Request request = new Request.Builder()
+        .url("https://api.github.com/gists/public")
+        .build();
+    try (Response response = client.newCall(request).execute()) {
+      if (!response.isSuccessful()) throw new IOException("Unexpected code " + response);
+
+      final long[] files = new long[1];
+      long count = forEach(response.body().source(), adapter, new ElementConsumer<Gist>() {
+        @Override public void accept(Gist gist) {
+          files[0] += gist.files.size();
+        }
+      });
+      System.out.println(count + " gists with " + files[0] + " files");
+    }
+
+    // Batches on a parallel stage, from an array far too large to hold in memory.
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    final AtomicLong total = new AtomicLong();
+    long start = System.nanoTime();
+    long count = forEachBatch(Okio.buffer(new GistsSource(10000000L)), adapter, 1000, 8,
+        executor, new BatchConsumer<Gist>() {
+          @Override public void accept(List<Gist> batch) {
+            long sum = 0L;
+            for (Gist gist : batch) {
+              for (GistFile file : gist.files.values()) {
+                sum += file.content.length();
+              }
+            }
+            total.addAndGet(sum);
+          }
+        });
+    executor.shutdown();
+    System.out.format("%d elements, %d chars of content in %d ms; heap in use %d MiB%n",
+        count, total.get(), (System.nanoTime() - start) / 1000000L,
+        (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) >> 20);
+  }
+}
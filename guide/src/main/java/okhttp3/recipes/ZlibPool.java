@@ -0,0 +1,520 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Sink;
+import okio.Source;
+import okio.Timeout;
+
+/**
+ * Bounded pools of {@link Deflater} and {@link Inflater} instances. Each holds native zlib state
+ * that is expensive to create and, unless {@code end()} is called, only released by finalization.
+ * Instances are reset and returned to the pool when the streams that borrowed them are closed.
+ *
+ * <p>Okio's {@code GzipSink}, {@code DeflaterSink} and {@code GzipSource} always create or end
+ * their own zlib state, so this class provides equivalent streams that borrow from the pool.
+ */
+public final class ZlibPool {
+  /**
+   * Approximate native bytes held by a deflater with zlib's default window and memory level: a
+   * 128 KiB sliding window, 128 KiB of hash chains and a few KiB of stream state.
+   */
+  static final long DEFLATER_NATIVE_BYTES = 262_144 + 6_144;
+  /** Approximate native bytes held by an inflater: a 32 KiB window and its stream state. */
+  static final long INFLATER_NATIVE_BYTES = 32_768 + 7_168;
+
+  private static final int CHUNK_SIZE = 8192;
+
+  public static final ZlibPool DEFAULT = new ZlibPool(Runtime.getRuntime().availableProcessors());
+
+  private final int maxIdlePerKind;
+  /** Idle deflaters indexed by {@link #deflaterIndex}; one queue per level and wrapping. */
+  private final ConcurrentLinkedQueue<Deflater>[] idleDeflaters;
+  private final AtomicInteger[] idleDeflaterCounts;
+  /** Idle inflaters; index 0 parses zlib wrappers and index 1 raw deflate data. */
+  private final ConcurrentLinkedQueue<Inflater>[] idleInflaters;
+  private final AtomicInteger[] idleInflaterCounts;
+
+  private final AtomicLong deflatersCreated = new AtomicLong();
+  private final AtomicLong deflatersEnded = new AtomicLong();
+  private final AtomicLong deflatersReused = new AtomicLong();
+  private final AtomicLong inflatersCreated = new AtomicLong();
+  private final AtomicLong inflatersEnded = new AtomicLong();
+  private final AtomicLong inflatersReused = new AtomicLong();
+
+  /** @param maxIdlePerKind the most idle instances kept for each level and wrapping. */
+  @SuppressWarnings({"rawtypes", "unchecked"}) // Generic arrays can't be created directly.
+  public ZlibPool(int maxIdlePerKind) {
+    if (maxIdlePerKind < 0) throw new IllegalArgumentException("maxIdlePerKind < 0");
+    this.maxIdlePerKind = maxIdlePerKind;
+    this.idleDeflaters = new ConcurrentLinkedQueue[22];
+    this.idleDeflaterCounts = new AtomicInteger[22];
+    for (int i = 0; i < idleDeflaters.length; i++) {
+      idleDeflaters[i] = new ConcurrentLinkedQueue<>();
+      idleDeflaterCounts[i] = new AtomicInteger();
+    }
+    this.idleInflaters = new ConcurrentLinkedQueue[2];
+    this.idleInflaterCounts = new AtomicInteger[2];
+    for (int i = 0; i < idleInflaters.length; i++) {
+      idleInflaters[i] = new ConcurrentLinkedQueue<>();
+      idleInflaterCounts[i] = new AtomicInteger();
+    }
+  }
+
+  private static int deflaterIndex(int level, boolean nowrap) {
+    if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("unexpected level: " + level);
+    }
+    return (level + 1) * 2 + (nowrap ? 1 : 0);
+  }
+
+  Deflater acquireDeflater(int level, boolean nowrap) {
+    int index = deflaterIndex(level, nowrap);
+    Deflater deflater = idleDeflaters[index].poll();
+    if (deflater != null) {
+      idleDeflaterCounts[index].decrementAndGet();
+      deflatersReused.incrementAndGet();
+      return deflater;
+    }
+    deflatersCreated.incrementAndGet();
+    return new Deflater(level, nowrap);
+  }
+
+  /** Returns {@code deflater} to the pool, or ends it if the pool is full. */
+  void releaseDeflater(Deflater deflater, int level, boolean nowrap) {
+    int index = deflaterIndex(level, nowrap);
+    if (idleDeflaterCounts[index].incrementAndGet() <= maxIdlePerKind) {
+      deflater.reset();
+      idleDeflaters[index].offer(deflater);
+    } else {
+      idleDeflaterCounts[index].decrementAndGet();
+      discardDeflater(deflater);
+    }
+  }
+
+  /** Frees {@code deflater}'s native state without pooling it, such as after a failure. */
+  void discardDeflater(Deflater deflater) {
+    deflater.end();
+    deflatersEnded.incrementAndGet();
+  }
+
+  Inflater acquireInflater(boolean nowrap) {
+    int index = nowrap ? 1 : 0;
+    Inflater inflater = idleInflaters[index].poll();
+    if (inflater != null) {
+      idleInflaterCounts[index].decrementAndGet();
+      inflatersReused.incrementAndGet();
+      return inflater;
+    }
+    inflatersCreated.incrementAndGet();
+    return new Inflater(nowrap);
+  }
+
+  void releaseInflater(Inflater inflater, boolean nowrap) {
+    int index = nowrap ? 1 : 0;
+    if (idleInflaterCounts[index].incrementAndGet() <= maxIdlePerKind) {
+      inflater.reset();
+      idleInflaters[index].offer(inflater);
+    } else {
+      idleInflaterCounts[index].decrementAndGet();
+      discardInflater(inflater);
+    }
+  }
+
+  void discardInflater(Inflater inflater) {
+    inflater.end();
+    inflatersEnded.incrementAndGet();
+  }
+
+  /** Returns a sink that writes a gzip stream of everything written to it into {@code sink}. */
+  public Sink gzip(Sink sink, int level) {
+    return new DeflateStreamSink(this, sink, level, true, null);
+  }
+
+  /**
+   * Returns a sink that writes a zlib stream ({@code Content-Encoding: deflate}) into {@code sink}.
+   *
+   * @param dictionary a preset dictionary, or null for none.
+   */
+  public Sink deflate(Sink sink, int level, byte[] dictionary) {
+    return new DeflateStreamSink(this, sink, level, false, dictionary);
+  }
+
+  /**
+   * Returns a source that decompresses the gzip stream in {@code source}. Unlike Okio's {@code
+   * GzipSource}, this accepts streams of several concatenated gzip members.
+   */
+  public Source gunzip(BufferedSource source) {
+    return new InflateStreamSource(this, source, true);
+  }
+
+  /** Returns a source that decompresses the zlib stream in {@code source}. */
+  public Source inflate(BufferedSource source) {
+    return new InflateStreamSource(this, source, false);
+  }
+
+  public long deflatersCreated() {
+    return deflatersCreated.get();
+  }
+
+  public long deflatersReused() {
+    return deflatersReused.get();
+  }
+
+  public long inflatersCreated() {
+    return inflatersCreated.get();
+  }
+
+  public long inflatersReused() {
+    return inflatersReused.get();
+  }
+
+  /** Deflaters whose native state hasn't been freed, whether idle or in use. */
+  public long liveDeflaterCount() {
+    return deflatersCreated.get() - deflatersEnded.get();
+  }
+
+  /** Inflaters whose native state hasn't been freed, whether idle or in use. */
+  public long liveInflaterCount() {
+    return inflatersCreated.get() - inflatersEnded.get();
+  }
+
+  public int idleDeflaterCount() {
+    int result = 0;
+    for (AtomicInteger count : idleDeflaterCounts) {
+      result += count.get();
+    }
+    return result;
+  }
+
+  public int idleInflaterCount() {
+    return idleInflaterCounts[0].get() + idleInflaterCounts[1].get();
+  }
+
+  /** Estimates the native memory held by live deflaters and inflaters. */
+  public long estimatedNativeBytes() {
+    return liveDeflaterCount() * DEFLATER_NATIVE_BYTES
+        + liveInflaterCount() * INFLATER_NATIVE_BYTES;
+  }
+
+  @Override public String toString() {
+    return "ZlibPool{deflaters=" + liveDeflaterCount() + " (" + idleDeflaterCount() + " idle)"
+        + ", inflaters=" + liveInflaterCount() + " (" + idleInflaterCount() + " idle)"
+        + ", estimatedNativeBytes=" + estimatedNativeBytes() + '}';
+  }
+
+  /** Compresses into a zlib or gzip stream using a borrowed deflater. */
+  static final class DeflateStreamSink implements Sink {
+    private final ZlibPool pool;
+    private final Sink sink;
+    private final int level;
+    private final boolean gzip;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] input = new byte[CHUNK_SIZE];
+    private final byte[] output = new byte[CHUNK_SIZE];
+    private final Buffer outputBuffer = new Buffer();
+    private boolean closed;
+
+    DeflateStreamSink(ZlibPool pool, Sink sink, int level, boolean gzip, byte[] dictionary) {
+      this.pool = pool;
+      this.sink = sink;
+      this.level = level;
+      this.gzip = gzip;
+      // Gzip frames raw deflate data itself; zlib framing is produced by the deflater.
+      this.deflater = pool.acquireDeflater(level, gzip);
+      if (dictionary != null) {
+        deflater.setDictionary(dictionary);
+      }
+      if (gzip) {
+        outputBuffer.writeShort(0x1f8b); // Two-byte gzip ID.
+        outputBuffer.writeByte(0x08); // 8 == Deflate compression method.
+        outputBuffer.writeByte(0x00); // No flags.
+        outputBuffer.writeInt(0x00); // No modification time.
+        outputBuffer.writeByte(0x00); // No extra flags.
+        outputBuffer.writeByte(0x00); // No OS.
+      }
+    }
+
+    @Override public void write(Buffer source, long byteCount) throws IOException {
+      if (closed) throw new IllegalStateException("closed");
+      while (byteCount > 0) {
+        int read = source.read(input, 0, (int) Math.min(byteCount, input.length));
+        if (read == -1) throw new EOFException();
+        if (gzip) crc.update(input, 0, read);
+        deflater.setInput(input, 0, read);
+        while (!deflater.needsInput()) {
+          emit(deflater.deflate(output, 0, output.length, Deflater.NO_FLUSH));
+        }
+        byteCount -= read;
+      }
+    }
+
+    @Override public void flush() throws IOException {
+      int count;
+      do {
+        count = deflater.deflate(output, 0, output.length, Deflater.SYNC_FLUSH);
+        emit(count);
+      } while (count == output.length);
+      sink.write(outputBuffer, outputBuffer.size());
+      sink.flush();
+    }
+
+    private void emit(int count) throws IOException {
+      if (count == 0) return;
+      outputBuffer.write(output, 0, count);
+      if (outputBuffer.size() >= CHUNK_SIZE) {
+        sink.write(outputBuffer, outputBuffer.size());
+      }
+    }
+
+    @Override public Timeout timeout() {
+      return sink.timeout();
+    }
+
+    @Override public void close() throws IOException {
+      if (closed) return;
+      closed = true;
+
+      // Emit deflated data to the underlying sink. If this fails, we still need to release the
+      // deflater and close the sink; otherwise we risk leaking resources.
+      Throwable thrown = null;
+      try {
+        deflater.finish();
+        while (!deflater.finished()) {
+          emit(deflater.deflate(output, 0, output.length, Deflater.NO_FLUSH));
+        }
+        if (gzip) {
+          outputBuffer.writeIntLe((int) crc.getValue()); // CRC of original data.
+          outputBuffer.writeIntLe((int) deflater.getBytesRead()); // Length of original data.
+        }
+        sink.write(outputBuffer, outputBuffer.size());
+      } catch (Throwable e) {
+        thrown = e;
+      }
+
+      if (thrown == null) {
+        pool.releaseDeflater(deflater, level, gzip);
+      } else {
+        pool.discardDeflater(deflater);
+      }
+
+      try {
+        sink.close();
+      } catch (Throwable e) {
+        if (thrown == null) thrown = e;
+      }
+
+      if (thrown instanceof IOException) throw (IOException) thrown;
+      if (thrown instanceof RuntimeException) throw (RuntimeException) thrown;
+      if (thrown instanceof Error) throw (Error) thrown;
+    }
+
+    /**
+     * Abandons the stream without writing its remainder, returning the deflater to the pool. The
+     * underlying sink is not closed.
+     */
+    void abort() {
+      if (closed) return;
+      closed = true;
+      pool.releaseDeflater(deflater, level, gzip);
+    }
+  }
+
+  /** Decompresses a zlib stream or a sequence of gzip members using a borrowed inflater. */
+  static final class InflateStreamSource implements Source {
+    private static final int FHCRC = 1;
+    private static final int FEXTRA = 2;
+    private static final int FNAME = 3;
+    private static final int FCOMMENT = 4;
+
+    private final ZlibPool pool;
+    private final BufferedSource source;
+    private final boolean gzip;
+    private final CRC32 crc = new CRC32();
+    private final byte[] input = new byte[CHUNK_SIZE];
+    private final byte[] output = new byte[CHUNK_SIZE];
+    private Inflater inflater;
+    /** Bytes read from {@link #source} but not consumed by the inflater, such as trailers. */
+    private Buffer unread = new Buffer();
+    private int inputLength;
+    private boolean inHeader;
+    private boolean done;
+
+    InflateStreamSource(ZlibPool pool, BufferedSource source, boolean gzip) {
+      this.pool = pool;
+      this.source = source;
+      this.gzip = gzip;
+      this.inflater = pool.acquireInflater(gzip);
+      this.inHeader = gzip;
+    }
+
+    @Override public long read(Buffer sink, long byteCount) throws IOException {
+      if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+      if (inflater == null) throw new IllegalStateException("closed");
+      if (byteCount == 0 || done) return done ? -1 : 0;
+
+      if (inHeader) {
+        consumeHeader();
+        inHeader = false;
+      }
+
+      while (true) {
+        if (inflater.needsInput()) {
+          inputLength = readInput();
+          if (inputLength == -1) throw new EOFException("source exhausted prematurely");
+          inflater.setInput(input, 0, inputLength);
+        }
+
+        int count;
+        try {
+          count = inflater.inflate(output, 0, (int) Math.min(byteCount, output.length));
+        } catch (DataFormatException e) {
+          throw new IOException(e);
+        }
+
+        if (count > 0) {
+          if (gzip) crc.update(output, 0, count);
+          sink.write(output, 0, count);
+          return count;
+        }
+
+        if (inflater.finished()) {
+          unreadRemaining();
+          if (gzip) {
+            consumeTrailer();
+            if (!exhausted()) {
+              // Another gzip member follows; decode it as a continuation of this stream.
+              inflater.reset();
+              crc.reset();
+              consumeHeader();
+              continue;
+            }
+          }
+          done = true;
+          pool.releaseInflater(inflater, gzip);
+          inflater = null;
+          return -1;
+        }
+
+        if (inflater.needsDictionary()) {
+          throw new IOException("stream requires a preset dictionary");
+        }
+      }
+    }
+
+    /** Pushes input the inflater didn't need back in front of the unread bytes. */
+    private void unreadRemaining() throws IOException {
+      int remaining = inflater.getRemaining();
+      if (remaining == 0) return;
+      Buffer newUnread = new Buffer();
+      newUnread.write(input, inputLength - remaining, remaining);
+      newUnread.writeAll(unread);
+      unread = newUnread;
+    }
+
+    private int readInput() throws IOException {
+      if (unread.size() > 0) {
+        return unread.read(input, 0, input.length);
+      }
+      return source.read(input, 0, input.length);
+    }
+
+    private int readUnsignedByte() throws IOException {
+      if (unread.size() > 0) {
+        return unread.readByte() & 0xff;
+      }
+      return source.readByte() & 0xff;
+    }
+
+    private int readIntLe() throws IOException {
+      int b0 = readUnsignedByte();
+      int b1 = readUnsignedByte();
+      int b2 = readUnsignedByte();
+      int b3 = readUnsignedByte();
+      return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+    }
+
+    private void skip(long byteCount) throws IOException {
+      for (long i = 0; i < byteCount; i++) {
+        readUnsignedByte();
+      }
+    }
+
+    private boolean exhausted() throws IOException {
+      return unread.size() == 0 && source.exhausted();
+    }
+
+    private void consumeHeader() throws IOException {
+      int id1 = readUnsignedByte();
+      int id2 = readUnsignedByte();
+      if (id1 != 0x1f || id2 != 0x8b) {
+        throw new IOException(String.format("ID1ID2: actual 0x%02x%02x != expected 0x1f8b",
+            id1, id2));
+      }
+      int method = readUnsignedByte();
+      if (method != 0x08) throw new IOException("unsupported compression method: " + method);
+      int flags = readUnsignedByte();
+      skip(6); // Modification time, extra flags and OS.
+
+      if (((flags >> FEXTRA) & 1) == 1) {
+        int xlen = readUnsignedByte() | (readUnsignedByte() << 8);
+        skip(xlen);
+      }
+      if (((flags >> FNAME) & 1) == 1) {
+        while (readUnsignedByte() != 0) {
+        }
+      }
+      if (((flags >> FCOMMENT) & 1) == 1) {
+        while (readUnsignedByte() != 0) {
+        }
+      }
+      if (((flags >> FHCRC) & 1) == 1) {
+        skip(2); // Header CRC; not verified.
+      }
+    }
+
+    private void consumeTrailer() throws IOException {
+      int crc32 = readIntLe();
+      if (crc32 != (int) crc.getValue()) throw new IOException("CRC mismatch");
+      int isize = readIntLe();
+      if (isize != (int) inflater.getBytesWritten()) throw new IOException("ISIZE mismatch");
+    }
+
+    @Override public Timeout timeout() {
+      return source.timeout();
+    }
+
+    @Override public void close() throws IOException {
+      if (inflater != null) {
+        pool.releaseInflater(inflater, gzip); // Abandoned mid-stream; reset() makes it reusable.
+        inflater = null;
+      }
+      source.close();
+    }
+  }
+}
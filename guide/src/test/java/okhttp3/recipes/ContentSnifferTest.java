@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import java.io.EOFException;
+import java.util.Random;
+import okio.Buffer;
+import okio.ByteString;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class ContentSnifferTest {
+  private static final String[] TEXT = {
+      "",
+      "Hello, world!",
+      "{\"login\":\"swankjesse\",\"contributions\":1000}\n",
+      "<!DOCTYPE html>\r\n<html><head><title>OkHttp</title></head></html>",
+      "a=1&b=2&c=%20",
+      "\tindented\tand\ttabbed\n",
+      "Ünïcödé façade naïve café",
+      "日本語のテキストです。これはテキストです。",
+      "Привет, мир! Это обычный текст.",
+      "emoji 😀 and more 🎉 text",
+  };
+
+  private static final String[] BINARY_HEX = {
+      "1f8b0800000000000003", // gzip
+      "89504e470d0a1a0a0000000d49484452", // png
+      "ffd8ffe000104a464946", // jpeg
+      "474946383961", // gif
+      "504b0304140000000800", // zip
+      "28b52ffd2000", // zstd
+      "255044462d312e34", // pdf
+      "0061736d01000000", // wasm
+      "524946462400000057454250565038", // webp
+      "0a0568656c6c6f1001", // protocol buffer
+      "00000000000000000000", // zeros
+      "cafebabe00000034", // class file
+  };
+
+  @Test public void text() {
+    for (String text : TEXT) {
+      assertTrue(text, ContentSniffer.isPlaintext(new Buffer().writeUtf8(text)));
+    }
+  }
+
+  @Test public void longText() {
+    StringBuilder text = new StringBuilder();
+    while (text.length() < 4096) {
+      text.append("The quick brown fox jumps over the lazy dog. 狐狸跳过了懒狗。\n");
+    }
+    assertTrue(ContentSniffer.isPlaintext(new Buffer().writeUtf8(text.toString())));
+  }
+
+  @Test public void multibyteSequenceStraddlingSampleIsText() {
+    // 63 ASCII bytes, then a 3-byte character that the 64-byte sample cuts in two.
+    Buffer buffer = new Buffer();
+    for (int i = 0; i < 63; i++) buffer.writeByte('a');
+    buffer.writeUtf8("日本");
+    assertTrue(ContentSniffer.isPlaintext(buffer));
+  }
+
+  @Test public void truncatedTrailingSequenceIsBinary() {
+    assertFalse(ContentSniffer.isPlaintext(hex("68656c6c6fe697"))); // "hello" + 2 of 3 bytes.
+    assertFalse(ContentSniffer.isPlaintext(hex("c3"))); // Lead byte only.
+    assertFalse(ContentSniffer.isPlaintext(hex("f09f98"))); // 3 of 4 bytes.
+  }
+
+  @Test public void binary() {
+    for (String hex : BINARY_HEX) {
+      assertFalse(hex, ContentSniffer.isPlaintext(hex(hex)));
+    }
+  }
+
+  @Test public void binarySignatures() {
+    assertEquals("gzip", ContentSniffer.binarySignature(hex("1f8b08")));
+    assertEquals("png", ContentSniffer.binarySignature(hex("89504e470d0a1a0a")));
+    assertEquals("jpeg", ContentSniffer.binarySignature(hex("ffd8ffe0")));
+    assertEquals("gif", ContentSniffer.binarySignature(hex("47494638")));
+    assertEquals("zip", ContentSniffer.binarySignature(hex("504b0304")));
+    assertEquals("zstd", ContentSniffer.binarySignature(hex("28b52ffd")));
+    assertEquals("pdf", ContentSniffer.binarySignature(hex("25504446")));
+    assertEquals("wasm", ContentSniffer.binarySignature(hex("0061736d")));
+    assertEquals("webp", ContentSniffer.binarySignature(hex("524946462400000057454250")));
+    assertNull(ContentSniffer.binarySignature(hex("52494646240000005741")));
+    assertNull(ContentSniffer.binarySignature(new Buffer().writeUtf8("GIF is a format")));
+    assertNull(ContentSniffer.binarySignature(hex("1f")));
+  }
+
+  /** Overlong forms, surrogates and out-of-range values decode as U+FFFD, which is text. */
+  @Test public void invalidSequencesDecodeAsReplacementCharacter() {
+    assertTrue(ContentSniffer.isPlaintext(hex("c080"))); // Overlong U+0000.
+    assertTrue(ContentSniffer.isPlaintext(hex("c181"))); // Overlong U+0041.
+    assertTrue(ContentSniffer.isPlaintext(hex("e08081"))); // Overlong U+0001.
+    assertTrue(ContentSniffer.isPlaintext(hex("f0808081"))); // Overlong U+0001.
+    assertTrue(ContentSniffer.isPlaintext(hex("eda080"))); // Surrogate U+D800.
+    assertTrue(ContentSniffer.isPlaintext(hex("f4908080"))); // U+110000.
+    assertTrue(ContentSniffer.isPlaintext(hex("80bf"))); // Lone continuation bytes.
+    assertTrue(ContentSniffer.isPlaintext(hex("f8fe"))); // Invalid lead bytes.
+    assertTrue(ContentSniffer.isPlaintext(hex("c34161"))); // Missing continuation byte.
+    assertFalse(ContentSniffer.isPlaintext(hex("c38001"))); // Control character after U+00C0.
+  }
+
+  /**
+   * Sixteen code points of random bytes contain no control character surprisingly often, since
+   * most bytes past 0x7f decode as U+FFFD. The scan must do at least as well as the one it
+   * replaced.
+   */
+  @Test public void randomBinaryIsMostlyRejected() {
+    Random random = new Random(0);
+    int misclassified = 0;
+    int okioMisclassified = 0;
+    int samples = 1000;
+    for (int i = 0; i < samples; i++) {
+      byte[] bytes = new byte[1024];
+      random.nextBytes(bytes);
+      Buffer buffer = new Buffer().write(bytes);
+      if (ContentSniffer.isPlaintext(buffer)) misclassified++;
+      if (okioIsPlaintext(buffer)) okioMisclassified++;
+    }
+    assertTrue("misclassified " + misclassified, misclassified <= okioMisclassified);
+    assertTrue("misclassified " + misclassified, misclassified < samples / 4);
+  }
+
+  /**
+   * Compares the in-place scan with the Okio-decoding implementation it replaced, over inputs
+   * built from valid, invalid and truncated UTF-8. Inputs fit in the sample, where the only
+   * intended differences are the binary signatures.
+   */
+  @Test public void agreesWithOkioDecoding() {
+    String[] pieces = {
+        "61", "20", "0a", "09", "00", "01", "7f", "c3a9", "e697a5", "f09f9880", "c080", "e08081",
+        "eda080", "f4908080", "80", "bf", "c3", "e697", "f09f98", "fe", "ff", "c2a0", "c285",
+    };
+    Random random = new Random(0);
+    for (int i = 0; i < 20000; i++) {
+      Buffer buffer = new Buffer();
+      int count = random.nextInt(20);
+      for (int j = 0; j < count; j++) {
+        buffer.write(ByteString.decodeHex(pieces[random.nextInt(pieces.length)]));
+      }
+      if (buffer.size() > ContentSniffer.SAMPLE_BYTE_COUNT) continue;
+      if (ContentSniffer.binarySignature(buffer) != null) continue;
+
+      String hex = buffer.snapshot().hex();
+      assertEquals(hex, okioIsPlaintext(buffer), ContentSniffer.isPlaintext(buffer));
+    }
+  }
+
+  /** The previous implementation, which decoded a copy of the sample with Okio. */
+  private static boolean okioIsPlaintext(Buffer buffer) {
+    try {
+      Buffer prefix = new Buffer();
+      long byteCount = Math.min(buffer.size(), ContentSniffer.SAMPLE_BYTE_COUNT);
+      buffer.copyTo(prefix, 0, byteCount);
+      for (int i = 0; i < ContentSniffer.SAMPLE_CODE_POINT_COUNT; i++) {
+        if (prefix.exhausted()) break;
+        int codePoint = prefix.readUtf8CodePoint();
+        if (Character.isISOControl(codePoint) && !Character.isWhitespace(codePoint)) {
+          return false;
+        }
+      }
+      return true;
+    } catch (EOFException e) {
+      return false; // Truncated UTF-8 sequence.
+    }
+  }
+
+  private static Buffer hex(String hex) {
+    return new Buffer().write(ByteString.decodeHex(hex));
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.recipes;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public final class SingleFlightTest {
+  private static final int CALLS = 8;
+
+  @Rule public final MockWebServer server = new MockWebServer();
+
+  private final SingleFlight singleFlight = new SingleFlight(1024 * 1024);
+  private final OkHttpClient client = new OkHttpClient.Builder()
+      .addInterceptor(singleFlight)
+      .build();
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  /** Set once the followers are waiting, so later requests are answered immediately. */
+  private volatile boolean followersWaiting;
+
+  @After public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test public void concurrentIdenticalCallsMakeOneRequest() throws Exception {
+    server.setDispatcher(slowDispatcher("Cache-Control: max-age=60", CALLS - 1));
+
+    List<String> bodies = callConcurrently(new String[CALLS]);
+
+    assertEquals(1, server.getRequestCount());
+    assertEquals(CALLS - 1, singleFlight.sharedCount());
+    for (String body : bodies) {
+      assertEquals("response 1", body);
+    }
+  }
+
+  @Test public void differentCredentialsAreNotShared() throws Exception {
+    server.setDispatcher(slowDispatcher("Cache-Control: max-age=60", CALLS - 2));
+
+    String[] authorizations = new String[CALLS];
+    for (int i = 0; i < CALLS; i++) {
+      authorizations[i] = "Bearer user" + (i % 2);
+    }
+    callConcurrently(authorizations);
+
+    assertEquals(2, server.getRequestCount());
+    assertEquals(CALLS - 2, singleFlight.sharedCount());
+  }
+
+  @Test public void privateResponsesAreNotShared() throws Exception {
+    server.setDispatcher(slowDispatcher("Cache-Control: private", CALLS - 1));
+
+    callConcurrently(new String[CALLS]);
+
+    assertEquals(CALLS, server.getRequestCount());
+    assertEquals(0, singleFlight.sharedCount());
+  }
+
+  @Test public void noStoreResponsesAreNotShared() throws Exception {
+    server.setDispatcher(slowDispatcher("Cache-Control: no-store", CALLS - 1));
+
+    callConcurrently(new String[CALLS]);
+
+    assertEquals(CALLS, server.getRequestCount());
+    assertEquals(0, singleFlight.sharedCount());
+  }
+
+  /**
+   * Returns a dispatcher that holds the leaders' responses until {@code followers} calls are
+   * waiting on them.
+   */
+  private Dispatcher slowDispatcher(final String header, final int followers) {
+    return new Dispatcher() {
+      int count;
+
+      @Override public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!followersWaiting && singleFlight.waitingCount() < followers
+            && System.nanoTime() < deadline) {
+          Thread.sleep(10);
+        }
+        followersWaiting = true;
+        synchronized (this) {
+          return new MockResponse()
+              .addHeader(header)
+              .setBody("response " + (++count));
+        }
+      }
+    };
+  }
+
+  /** Makes {@code CALLS} calls at once, with the given {@code Authorization} headers. */
+  private List<String> callConcurrently(String[] authorizations) throws Exception {
+    List<Future<String>> futures = new ArrayList<>();
+    for (final String authorization : authorizations) {
+      futures.add(executor.submit(new Callable<String>() {
+        @Override public String call() throws IOException {
+          Request.Builder request = new Request.Builder().url(server.url("/"));
+          if (authorization != null) request.header("Authorization", authorization);
+          try (Response response = client.newCall(request.build()).execute()) {
+            return response.body().string();
+          }
+        }
+      }));
+    }
+
+    List<String> bodies = new ArrayList<>();
+    for (Future<String> future : futures) {
+      bodies.add(future.get(10, TimeUnit.SECONDS));
+    }
+    return bodies;
+  }
+}
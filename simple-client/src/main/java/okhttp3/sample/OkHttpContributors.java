@@ -1,42 +1,85 @@
 package okhttp3.sample;
 
 import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonReader;
+import com.squareup.moshi.JsonWriter;
 import com.squareup.moshi.Moshi;
-import com.squareup.moshi.Types;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
-import okhttp3.ResponseBody;
 
 public class OkHttpContributors {
   private static final String ENDPOINT = "https://api.github.com/repos/square/okhttp/contributors";
-  private static final Moshi MOSHI = new Moshi.Builder().build();
-  private static final JsonAdapter<List<Contributor>> CONTRIBUTORS_JSON_ADAPTER = MOSHI.adapter(
-      Types.newParameterizedType(List.class, Contributor.class));
+  private static final Moshi MOSHI = new Moshi.Builder()
+      .add(Contributor.class, new ContributorJsonAdapter().nullSafe())
+      .build();
+  private static final JsonAdapter<Contributor> CONTRIBUTOR_JSON_ADAPTER =
+      MOSHI.adapter(Contributor.class);
 
   static class Contributor {
     String login;
     int contributions;
   }
 
+  /** Decodes {@link Contributor} without reflection, as a code-generated adapter would. */
+  static final class ContributorJsonAdapter extends JsonAdapter<Contributor> {
+    @Override public Contributor fromJson(JsonReader reader) throws IOException {
+      Contributor contributor = new Contributor();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "login":
+            contributor.login = reader.peek() == JsonReader.Token.NULL
+                ? reader.<String>nextNull()
+                : reader.nextString();
+            break;
+          case "contributions":
+            contributor.contributions = reader.nextInt();
+            break;
+          default:
+            reader.skipValue();
+            break;
+        }
+      }
+      reader.endObject();
+      return contributor;
+    }
+
+    @Override public void toJson(JsonWriter writer, Contributor contributor) throws IOException {
+      writer.beginObject();
+      writer.name("login").value(contributor.login);
+      writer.name("contributions").value(contributor.contributions);
+      writer.endObject();
+    }
+
+    @Override public String toString() {
+      return "JsonAdapter(Contributor)";
+    }
+  }
+
   public static void main(String... args) throws Exception {
     OkHttpClient client = new OkHttpClient();
 
-    // Create request for remote resource.
-    Request request = new Request.Builder()
-        .url(ENDPOINT)
-        .build();
-
-    // Execute the request and retrieve the response.
-    Response response = client.newCall(request).execute();
+    ExecutorService executor = Executors.newSingleThreadExecutor();
 
-    // Deserialize HTTP response to concrete type.
-    ResponseBody body = response.body();
-    List<Contributor> contributors = CONTRIBUTORS_JSON_ADAPTER.fromJson(body.source());
-    body.close();
+    // Fetch every page, deserializing each to concrete types while the next one downloads.
+    List<Contributor> contributors = new ArrayList<>();
+    try (Paginator<Contributor> pages = new Paginator<>(client,
+        HttpUrl.parse(ENDPOINT).newBuilder().addQueryParameter("per_page", "100").build(),
+        CONTRIBUTOR_JSON_ADAPTER, executor, TimeUnit.MINUTES.toMillis(1))) {
+      while (pages.hasNextPage()) {
+        contributors.addAll(pages.nextPage());
+      }
+    } finally {
+      executor.shutdown();
+    }
 
     // Sort list by the most contributions.
     Collections.sort(contributors, new Comparator<Contributor>() {
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.sample;
+
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.JsonReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Reads every page of a paginated JSON array API, following {@code Link: <...>; rel="next"}
+ * headers as GitHub's API does. While the caller works through one page, the next is fetched in
+ * the background, so a caller that's slower than the network never waits for it.
+ *
+ * <p>Each page's array is decoded one element at a time with the element's adapter. Rate limits
+ * are respected: when GitHub's {@code X-RateLimit-Remaining} reaches zero, the next request waits
+ * until {@code X-RateLimit-Reset}; a {@code 403} or {@code 429} that signals a rate limit is
+ * retried after the limit resets or after {@code Retry-After}.
+ */
+public final class Paginator<T> implements Closeable {
+  private static final int MAX_RATE_LIMITED_ATTEMPTS = 3;
+
+  private final OkHttpClient client;
+  private final JsonAdapter<T> elementAdapter;
+  private final Executor executor;
+  private final long maxRateLimitWaitMillis;
+
+  /** The page being prefetched. Written under this object's lock so close() can't miss one. */
+  private volatile FutureTask<Page<T>> next;
+  private volatile Call call;
+  private volatile boolean closed;
+
+  /** Wall-clock time at which requests may resume, or 0 if they aren't rate limited. */
+  private volatile long rateLimitedUntilMillis;
+
+  /**
+   * @param executor runs the background page fetches.
+   * @param maxRateLimitWaitMillis the longest to wait for a rate limit to reset before failing.
+   */
+  public Paginator(OkHttpClient client, HttpUrl firstPage, JsonAdapter<T> elementAdapter,
+      Executor executor, long maxRateLimitWaitMillis) {
+    this.client = client;
+    this.elementAdapter = elementAdapter;
+    this.executor = executor;
+    this.maxRateLimitWaitMillis = maxRateLimitWaitMillis;
+    this.next = prefetch(firstPage);
+  }
+
+  public boolean hasNextPage() {
+    return next != null;
+  }
+
+  /** Returns the next page's elements, and starts fetching the page after it. */
+  public List<T> nextPage() throws IOException {
+    if (closed) throw new IllegalStateException("closed");
+    FutureTask<Page<T>> next = this.next;
+    if (next == null) throw new NoSuchElementException();
+
+    Page<T> page;
+    try {
+      page = next.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted waiting for page");
+    } catch (CancellationException e) {
+      throw new IOException("Canceled");
+    } catch (ExecutionException e) {
+      this.next = null;
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new IOException(cause);
+    }
+
+    synchronized (this) {
+      this.next = page.next != null && !closed ? prefetch(page.next) : null;
+    }
+    return page.elements;
+  }
+
+  /** Stops fetching. A page in flight is canceled. */
+  @Override public void close() {
+    FutureTask<Page<T>> next;
+    synchronized (this) {
+      closed = true;
+      next = this.next;
+      this.next = null;
+    }
+    Call call = this.call;
+    if (call != null) call.cancel();
+    if (next != null) next.cancel(true);
+  }
+
+  private FutureTask<Page<T>> prefetch(final HttpUrl url) {
+    FutureTask<Page<T>> task = new FutureTask<>(new Callable<Page<T>>() {
+      @Override public Page<T> call() throws IOException {
+        return fetch(url);
+      }
+    });
+    executor.execute(task);
+    return task;
+  }
+
+  private Page<T> fetch(HttpUrl url) throws IOException {
+    Request request = new Request.Builder()
+        .url(url)
+        .build();
+
+    for (int attempt = 1; ; attempt++) {
+      awaitRateLimit();
+      if (closed) throw new IOException("Canceled");
+
+      Call call = client.newCall(request);
+      this.call = call;
+      try (Response response = call.execute()) {
+        long retryAtMillis = rateLimit(response);
+        if (retryAtMillis != -1L && attempt < MAX_RATE_LIMITED_ATTEMPTS) {
+          rateLimitedUntilMillis = retryAtMillis;
+          continue;
+        }
+        if (!response.isSuccessful()) throw new IOException("Unexpected code " + response);
+
+        List<T> elements = new ArrayList<>();
+        JsonReader reader = JsonReader.of(response.body().source());
+        reader.beginArray();
+        while (reader.hasNext()) {
+          elements.add(elementAdapter.fromJson(reader));
+        }
+        reader.endArray();
+
+        return new Page<>(elements, nextLink(url, response.headers("Link")));
+      }
+    }
+  }
+
+  /** Sleeps until the rate limit resets, if one is in effect. */
+  private void awaitRateLimit() throws IOException {
+    long waitMillis = rateLimitedUntilMillis - System.currentTimeMillis();
+    if (waitMillis <= 0L) return;
+    if (waitMillis > maxRateLimitWaitMillis) {
+      throw new IOException("rate limited for another " + waitMillis + " ms");
+    }
+    try {
+      Thread.sleep(waitMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted waiting for rate limit");
+    }
+  }
+
+  /**
+   * Records the rate limit advertised by {@code response}. Returns the time at which to retry if
+   * the response was rejected because of a rate limit, or -1 if it wasn't.
+   */
+  private long rateLimit(Response response) {
+    long now = System.currentTimeMillis();
+    long resetMillis = -1L;
+    String remaining = response.header("X-RateLimit-Remaining");
+    String reset = response.header("X-RateLimit-Reset");
+    if ("0".equals(remaining) && reset != null) {
+      try {
+        resetMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(reset.trim()));
+        rateLimitedUntilMillis = resetMillis;
+      } catch (NumberFormatException ignored) {
+      }
+    }
+
+    if (response.code() != 403 && response.code() != 429) return -1L;
+
+    String retryAfter = response.header("Retry-After");
+    if (retryAfter != null) {
+      try {
+        return now + TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    return resetMillis; // -1 if this 403 isn't about rate limits.
+  }
+
+  /** Returns the {@code rel="next"} target of {@code links}, or null if there is none. */
+  static HttpUrl nextLink(HttpUrl base, List<String> links) {
+    for (String header : links) {
+      int pos = 0;
+      while (true) {
+        int open = header.indexOf('<', pos);
+        if (open == -1) break;
+        int close = header.indexOf('>', open);
+        if (close == -1) break;
+        int end = header.indexOf('<', close);
+        if (end == -1) end = header.length();
+
+        String target = header.substring(open + 1, close);
+        for (String param : header.substring(close + 1, end).split(";")) {
+          int equals = param.indexOf('=');
+          if (equals == -1 || !param.substring(0, equals).trim().equalsIgnoreCase("rel")) continue;
+          String rel = param.substring(equals + 1).trim().replace("\"", "").replace(",", " ");
+          for (String value : rel.split(" ")) {
+            if (value.equalsIgnoreCase("next")) return base.resolve(target);
+          }
+        }
+        pos = end;
+      }
+    }
+    return null;
+  }
+
+  static final class Page<T> {
+    final List<T> elements;
+    final HttpUrl next;
+
+    Page(List<T> elements, HttpUrl next) {
+      this.elements = elements;
+      this.next = next;
+    }
+  }
+}
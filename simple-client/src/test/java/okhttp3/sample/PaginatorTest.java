@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.sample;
+
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.Moshi;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class PaginatorTest {
+  @Rule public final MockWebServer server = new MockWebServer();
+
+  private final OkHttpClient client = new OkHttpClient();
+  private final JsonAdapter<Integer> adapter = new Moshi.Builder().build().adapter(Integer.class);
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @After public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test public void followsNextLinks() throws Exception {
+    server.enqueue(page("[1,2]", "</page2>; rel=\"next\", </page3>; rel=\"last\""));
+    server.enqueue(page("[3,4]", "</page1>; rel=\"prev\", </page3>; rel=\"next\""));
+    server.enqueue(page("[5]", "</page1>; rel=\"first\""));
+
+    List<Integer> elements = new ArrayList<>();
+    try (Paginator<Integer> pages = paginator(TimeUnit.SECONDS.toMillis(10))) {
+      while (pages.hasNextPage()) {
+        elements.addAll(pages.nextPage());
+      }
+    }
+
+    assertEquals(Arrays.asList(1, 2, 3, 4, 5), elements);
+    assertEquals("/page1", server.takeRequest().getPath());
+    assertEquals("/page2", server.takeRequest().getPath());
+    assertEquals("/page3", server.takeRequest().getPath());
+  }
+
+  @Test public void waitsForRateLimitReset() throws Exception {
+    long resetSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 1;
+    server.enqueue(page("[1]", "</page2>; rel=\"next\"")
+        .addHeader("X-RateLimit-Remaining", "0")
+        .addHeader("X-RateLimit-Reset", resetSeconds));
+    server.enqueue(page("[2]", null));
+
+    try (Paginator<Integer> pages = paginator(TimeUnit.SECONDS.toMillis(10))) {
+      assertEquals(Arrays.asList(1), pages.nextPage());
+      assertEquals(Arrays.asList(2), pages.nextPage());
+      assertFalse(pages.hasNextPage());
+    }
+
+    server.takeRequest();
+    server.takeRequest();
+    assertTrue(System.currentTimeMillis() >= TimeUnit.SECONDS.toMillis(resetSeconds));
+  }
+
+  @Test public void retriesAfterRetryAfter() throws Exception {
+    server.enqueue(new MockResponse()
+        .setResponseCode(429)
+        .addHeader("Retry-After", "1"));
+    server.enqueue(page("[1]", null));
+
+    long start = System.nanoTime();
+    try (Paginator<Integer> pages = paginator(TimeUnit.SECONDS.toMillis(10))) {
+      assertEquals(Arrays.asList(1), pages.nextPage());
+      assertFalse(pages.hasNextPage());
+    }
+
+    assertEquals(2, server.getRequestCount());
+    assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(1));
+  }
+
+  @Test public void failsWhenRateLimitedTooLong() throws Exception {
+    server.enqueue(new MockResponse()
+        .setResponseCode(429)
+        .addHeader("Retry-After", "3600"));
+
+    try (Paginator<Integer> pages = paginator(TimeUnit.SECONDS.toMillis(1))) {
+      pages.nextPage();
+      fail();
+    } catch (IOException expected) {
+    }
+
+    assertEquals(1, server.getRequestCount());
+  }
+
+  @Test public void closeCancelsPrefetch() throws Exception {
+    server.enqueue(page("[1]", "</page2>; rel=\"next\""));
+    server.enqueue(page("[2]", "</page3>; rel=\"next\"")
+        .setBodyDelay(3, TimeUnit.SECONDS));
+    server.enqueue(page("[3]", null));
+
+    Paginator<Integer> pages = paginator(TimeUnit.SECONDS.toMillis(10));
+    assertEquals(Arrays.asList(1), pages.nextPage());
+    assertEquals("/page1", server.takeRequest().getPath());
+    assertEquals("/page2", server.takeRequest().getPath()); // The prefetch awaits its body.
+
+    pages.close();
+    assertFalse(pages.hasNextPage());
+    try {
+      pages.nextPage();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+
+    // The prefetch finishes long before its body would arrive only if close() canceled it.
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    assertEquals(2, server.getRequestCount());
+  }
+
+  private Paginator<Integer> paginator(long maxRateLimitWaitMillis) {
+    return new Paginator<>(client, server.url("/page1"), adapter, executor,
+        maxRateLimitWaitMillis);
+  }
+
+  private static MockResponse page(String body, String link) {
+    MockResponse response = new MockResponse().setBody(body);
+    if (link != null) response.addHeader("Link", link);
+    return response;
+  }
+}
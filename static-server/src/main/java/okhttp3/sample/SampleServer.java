@@ -17,6 +17,7 @@ import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
 import okio.Buffer;
+import okio.BufferedSource;
 import okio.Okio;
 
 public class SampleServer extends Dispatcher {
@@ -45,7 +46,7 @@ public class SampleServer extends Dispatcher {
       File file = new File(root + path);
       return file.isDirectory()
           ? directoryToResponse(path, file)
-          : fileToResponse(path, file);
+          : fileToResponse(path, file, request);
     } catch (FileNotFoundException e) {
       return new MockResponse()
           .setStatus("HTTP/1.1 404")
@@ -77,16 +78,79 @@ public class SampleServer extends Dispatcher {
         .setBody(response.toString());
   }
 
-  private MockResponse fileToResponse(String path, File file) throws IOException {
+  private MockResponse fileToResponse(String path, File file, RecordedRequest request)
+      throws IOException {
+    long length = file.length();
+    String etag = String.format("\"%x-%x\"", file.lastModified(), length);
+
+    // Serve a single byte range if one was requested and the client's copy is still current.
+    String range = request.getHeader("Range");
+    String ifRange = request.getHeader("If-Range");
+    long[] bounds = range != null && (ifRange == null || ifRange.equals(etag))
+        ? parseRange(range, length)
+        : null;
+    if (bounds == UNSATISFIABLE_RANGE) {
+      return new MockResponse()
+          .setStatus("HTTP/1.1 416")
+          .addHeader("content-range: bytes */" + length);
+    }
+    if (bounds != null) {
+      return new MockResponse()
+          .setStatus("HTTP/1.1 206")
+          .setBody(fileToBytes(file, bounds[0], bounds[1] - bounds[0] + 1))
+          .addHeader("content-type: " + contentType(path))
+          .addHeader("content-range: bytes " + bounds[0] + "-" + bounds[1] + "/" + length)
+          .addHeader("accept-ranges: bytes")
+          .addHeader("etag: " + etag);
+    }
+
     return new MockResponse()
         .setStatus("HTTP/1.1 200")
-        .setBody(fileToBytes(file))
-        .addHeader("content-type: " + contentType(path));
+        .setBody(fileToBytes(file, 0, length))
+        .addHeader("content-type: " + contentType(path))
+        .addHeader("accept-ranges: bytes")
+        .addHeader("etag: " + etag);
   }
 
-  private Buffer fileToBytes(File file) throws IOException {
+  private static final long[] UNSATISFIABLE_RANGE = new long[0];
+
+  /**
+   * Returns the first and last byte offsets of a single-range {@code bytes=} header, {@link
+   * #UNSATISFIABLE_RANGE} if it lies outside the file, or null to serve the whole file.
+   */
+  private long[] parseRange(String range, long length) {
+    if (!range.startsWith("bytes=") || range.indexOf(',') != -1) return null;
+    int dash = range.indexOf('-');
+    if (dash == -1) return null;
+    try {
+      String first = range.substring("bytes=".length(), dash).trim();
+      String last = range.substring(dash + 1).trim();
+      long start;
+      long end;
+      if (first.isEmpty()) {
+        if (last.isEmpty()) return null;
+        start = Math.max(0, length - Long.parseLong(last)); // Suffix range: the last N bytes.
+        end = length - 1;
+      } else {
+        start = Long.parseLong(first);
+        end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+      }
+      if (start >= length || end < start) return UNSATISFIABLE_RANGE;
+      return new long[] {start, end};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private Buffer fileToBytes(File file, long offset, long byteCount) throws IOException {
     Buffer result = new Buffer();
-    result.writeAll(Okio.source(file));
+    BufferedSource source = Okio.buffer(Okio.source(file));
+    try {
+      source.skip(offset);
+      source.readFully(result, byteCount);
+    } finally {
+      Util.closeQuietly(source);
+    }
     return result;
   }
 